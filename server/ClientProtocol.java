@@ -3,18 +3,22 @@ package server;
 import java.io.*;
 import java.util.logging.*;
 import server.communication.Client;
+import server.communication.Conversation;
 import server.game.GameServer;
 
 
 /** Encapsulates subprotocols, such as communication with lobby and
- * communication with game server, into a single protocol. Should be
- * carried out asynchronously by a new thread. */
-public class ClientProtocol implements Runnable {
+ * communication with game server, into a single protocol. Either
+ * carried out by a thread of its own ('run'), or driven line by line by
+ * an event loop (as a 'Conversation'). */
+public class ClientProtocol implements Runnable, Conversation {
   protected static Logger logger = Logger.getLogger("Server");
   
   protected Client client;
   protected Lobby lobby;
   protected GameServer gserver;
+  protected Conversation current; // with the lobby, then with the game server
+  protected boolean inGame;
   
   /** Creates a ClientProtocol that communicates with client <client0>,
    * lobby <lobby0> and game server <gserver0>. */
@@ -22,6 +26,8 @@ public class ClientProtocol implements Runnable {
     client = client0;
     lobby = lobby0;
     gserver = gserver0;
+    current = lobby.conversationWith(client);
+    inGame = false;
   }
   
   @Override
@@ -35,4 +41,22 @@ public class ClientProtocol implements Runnable {
     }
     lobby.free(client.id);
   }
+  
+  @Override
+  public boolean onLine (String line) {
+    if (current.onLine(line)) {
+      return true;
+    }
+    if (!inGame) {
+      current = gserver.conversationWith(client);
+      inGame = true;
+      return true;
+    }
+    return false;
+  }
+  
+  @Override
+  public void onClose () {
+    lobby.free(client.id);
+  }
 }
@@ -0,0 +1,41 @@
+package server;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.logging.*;
+import server.communication.*;
+import server.game.*;
+
+
+/** Listens for connections. */
+class Listener implements Runnable {
+  protected static Logger logger = Logger.getLogger("Server");
+  
+  protected Receptionist receptionist;
+  protected Lobby lobby;
+  protected GameServer gserver;
+  protected ClientThreads threads;
+  
+  Listener (Receptionist receptionist0, Lobby lobby0, GameServer gserver0, ClientThreads threads0) {
+    receptionist = receptionist0;
+    lobby = lobby0;
+    gserver = gserver0;
+    threads = threads0;
+  }
+  
+  @Override
+  public void run () {
+    try { // listen for client connectionst
+      for (long accepted = 1; true; accepted++) {
+        Client client = receptionist.accept();
+        threads.start(new ClientProtocol(client, lobby, gserver));
+        if (accepted % 1000 == 0) { // what the clients cost
+          logger.info(String.format("%d clients accepted, %d platform threads alive (%s)", accepted, ManagementFactory.getThreadMXBean().getThreadCount(), threads.isVirtual() ? "virtual" : "platform"));
+        }
+      }
+    }
+    catch (IOException exc) {
+      logger.info(String.format("IOException while running, ending. [%s]", exc.getMessage()));
+    }
+  }
+}
@@ -64,15 +64,24 @@ public class Lobby {
   /** Starts a conversation with the provided client regarding his seat.
    * Throws a NoSuchElementException when the client shuts down. */
   public void communicateWith (Client client) throws IOException {
-    while (true) {
-      Scanner sc = new Scanner(client.receive());
+    Conversation conversation = conversationWith(client);
+    while (conversation.onLine(client.receive())) {
+      client.awaitResume();
+    }
+  }
+  
+  /** Returns the conversation with the provided client regarding his
+   * seat, which is over when the client sends 'finish'. */
+  public Conversation conversationWith (Client client) {
+    return line -> {
+      Scanner sc = new Scanner(line);
       String cmd;
       try {
         cmd = sc.next();
       }
       catch (NoSuchElementException exc) {
         logger.info(String.format("got empty message from client %d (id = %d)", client.hashCode(), client.id));
-        continue;
+        return true;
       }
       if (cmd.equals("take")) {
         int i;
@@ -81,7 +90,7 @@ public class Lobby {
         }
         catch (NoSuchElementException exc) {
           logger.info(String.format("got 'take' from %d, but what follows is not an int", client.hashCode()));
-          continue;
+          return true;
         }
         if (take(i)) {
           free(client.id);
@@ -100,8 +109,9 @@ public class Lobby {
       }
       else
       if (cmd.equals("finish")) {
-        break;
+        return false;
       }
-    }
+      return true;
+    };
   }
 }
@@ -2,6 +2,7 @@ package server;
 
 import java.io.*;
 import java.net.*;
+import java.time.*;
 import java.util.*;
 import java.util.logging.*;
 import server.communication.*;
@@ -17,6 +18,7 @@ public class Server implements Runnable {
   
   protected Random rng;
   protected Receptionist receptionist;
+  protected NioReceptionist nioReceptionist;
   protected Lobby lobby;
   protected Listener listener;
   protected GameServer gserver;
@@ -31,16 +33,41 @@ public class Server implements Runnable {
     }
     rng = new Random(seed);
     
-    // default arguments
+    // default arguments (the visibility graph is built once the map is
+    // known, unless the map comes with one)
     Terrain terra = Terrain.mildRandom(rng, 100, 100);
+    Visibility visibility = null;
     List<InitialUnit> initial = InitialUnit.dummyStartingPositions(terra);
     
-    // first argument is map and initial units file
+    // first argument is map and initial units file (text or a compiled
+    // bundle, see 'MapBundle')
     if (argMap.containsKey("map")) {
-      FileInputStream fin = new FileInputStream(argMap.get("map"));
-      Scanner sc = new Scanner(fin);
-      terra = new Terrain(sc);
-      initial = InitialUnit.getStartingPositions(sc);
+      MapBundle bundle = MapBundle.load(java.nio.file.Paths.get(argMap.get("map")));
+      terra = bundle.getTerrain();
+      visibility = bundle.getVisibility();
+      initial = bundle.getInitial();
+    }
+    
+    // visibility model: linear (default) or shadow, symmetric
+    // shadowcasting. The latter is built in O(range^2) per cell instead
+    // of O(range^3), but follows another rule: the height of the target
+    // does not count, so a cell higher than the viewer (forests count
+    // as one higher) hides whatever is behind it, and lower ground
+    // behind a cell of middle height stays visible (see
+    // 'ShadowVisibility'). It replaces the graph of a bundle, and is
+    // always built whole, even for a map that would get a lazy graph.
+    if (argMap.containsKey("visibility")) {
+      String kind = argMap.get("visibility");
+      if (kind.equals("shadow")) {
+        visibility = new ShadowVisibility(terra, Constants.sight);
+      }
+      else
+      if (!kind.equals("linear")) {
+        logger.info(String.format("unknown visibility %s, using linear", kind));
+      }
+    }
+    if (visibility == null) {
+      visibility = Visibility.of(terra, Constants.sight);
     }
     
     // optional second argument: IP address and port
@@ -52,21 +79,58 @@ public class Server implements Runnable {
     if (argMap.containsKey("port")) {
       port = Integer.parseInt(argMap.get("seed"));
     }
-    receptionist = new Receptionist(new InetSocketAddress(addr, port));
     lobby = new Lobby();
     
+    // transport: a few event loops serving all clients (default), a
+    // thread per client, or a virtual thread per client (platform threads
+    // where the runtime has no virtual threads)
+    String transport = "nio";
+    if (argMap.containsKey("transport")) {
+      transport = argMap.get("transport");
+    }
+    int loops = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    if (argMap.containsKey("loops")) {
+      loops = Integer.parseInt(argMap.get("loops"));
+    }
+    
     // set log folder
     recordFolder = ".";
     if (argMap.containsKey("log")) {
       recordFolder = argMap.get("log");
     }
     
+    // turbo mode: a turn ends as soon as both players sent commands,
+    // or when the budget (in milliseconds) runs out
+    boolean turbo = argMap.containsKey("turbo") && !argMap.get("turbo").equals("0");
+    
+    // early advance: a turn ends as soon as both players sent 'commit',
+    // or when the budget runs out (classic timing otherwise)
+    boolean early = argMap.containsKey("early") && !argMap.get("early").equals("0");
+    int budget = Constants.turnMillis;
+    if (argMap.containsKey("budget")) {
+      budget = Integer.parseInt(argMap.get("budget"));
+    }
+    
     // creates the game
-    Game game = new Game(rng, terra, initial);
-    gserver = new GameServer(game);
+    Game game = new Game(rng, terra, visibility, initial);
+    gserver = new GameServer(game, turbo, early, Duration.ofMillis(budget));
+    
+    // spin for the last microseconds of a turn (see 'GameServer.setSpin')
+    if (argMap.containsKey("spin")) {
+      gserver.setSpin(Duration.ofNanos(1000L * Integer.parseInt(argMap.get("spin"))));
+    }
     
     // creates the thing that listens for clients
-    listener = new Listener(receptionist, lobby, gserver);
+    if (transport.equals("threads") || transport.equals("virtual")) {
+      receptionist = new Receptionist(new InetSocketAddress(addr, port));
+      listener = new Listener(receptionist, lobby, gserver, new ClientThreads(transport.equals("virtual")));
+    }
+    else {
+      if (!transport.equals("nio")) {
+        logger.info(String.format("unknown transport %s, using nio", transport));
+      }
+      nioReceptionist = new NioReceptionist(new InetSocketAddress(addr, port), loops, client -> new ClientProtocol(client, lobby, gserver));
+    }
   }
   
   @Override
@@ -82,9 +146,14 @@ public class Server implements Runnable {
     }
     
     // starts the thing that listens for clients
-    Thread lobby_worker = new Thread(listener);
-    lobby_worker.setDaemon(true);
-    lobby_worker.start();
+    if (listener != null) {
+      Thread lobby_worker = new Thread(listener);
+      lobby_worker.setDaemon(true);
+      lobby_worker.start();
+    }
+    else {
+      nioReceptionist.start();
+    }
     
     // wait for two players, then start the game
     synchronized (lobby) {
@@ -111,8 +180,8 @@ public class Server implements Runnable {
     // create observation file
     String observer_file = String.format("%s/observer.log", recordFolder);
     try {
-      PrintStream fout = new PrintStream(new FileOutputStream(observer_file));
-      fout.print(gserver.getHistory(-1));
+      PrintStream fout = new PrintStream(new BufferedOutputStream(new FileOutputStream(observer_file)));
+      gserver.printHistory(-1, fout);
       fout.close();
     }
     catch (FileNotFoundException exc) {
@@ -128,6 +197,18 @@ public class Server implements Runnable {
     catch (FileNotFoundException exc) {
       logger.info(String.format("cannot create score file [%s]", exc.getMessage()));
     }
+    // create timing file
+    String timing_file = String.format("%s/timing", recordFolder);
+    try {
+      PrintStream fout = new PrintStream(new FileOutputStream(timing_file));
+      fout.printf("stages: %s%n", gserver.getStageTimes());
+      fout.printf("turn start jitter: %s%n", gserver.getJitter());
+      fout.printf("simulation: %s%n", gserver.getSimulation());
+      fout.close();
+    }
+    catch (FileNotFoundException exc) {
+      logger.info(String.format("cannot create timing file [%s]", exc.getMessage()));
+    }
   }
   
   /** Runs a test game. */
@@ -156,34 +237,3 @@ public class Server implements Runnable {
     server.run();
   }
 }
-
-
-/** Listens for connections. */
-class Listener implements Runnable {
-  protected static Logger logger = Logger.getLogger("Server");
-  
-  protected Receptionist receptionist;
-  protected Lobby lobby;
-  protected GameServer gserver;
-  
-  Listener (Receptionist receptionist0, Lobby lobby0, GameServer gserver0) {
-    receptionist = receptionist0;
-    lobby = lobby0;
-    gserver = gserver0;
-  }
-  
-  @Override
-  public void run () {
-    try { // listen for client connectionst
-      while (true) {
-        Client client = receptionist.accept();
-        Thread worker = new Thread(new ClientProtocol(client, lobby, gserver));
-        worker.setDaemon(true);
-        worker.start();
-      }
-    }
-    catch (IOException exc) {
-      logger.info(String.format("IOException while running, ending. [%s]", exc.getMessage()));
-    }
-  }
-}
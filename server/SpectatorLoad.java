@@ -0,0 +1,163 @@
+package server;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.time.*;
+import java.util.*;
+import server.communication.*;
+import server.game.logic.Game;
+import server.game.map.*;
+import server.game.units.*;
+import server.game.*;
+
+
+/** Load test for many idle spectators. Starts a server in this JVM (the
+ * default random map, no players, so the game never starts), opens
+ * <count> connections to it, each of which leaves the lobby and asks
+ * for the intro and the next view, and waits until every spectator has
+ * read its whole intro. After that they stay idle, on hold until a turn
+ * that never comes. Prints how long it took and what the clients cost
+ * the server in threads, sampled every second:
+ *   - platform threads, as counted by the ThreadMXBean (virtual threads
+ *     are not counted),
+ *   - carrier threads, the workers of the scheduler of virtual threads
+ *     (named "ForkJoinPool-<n>-worker-<m>"; the common pool's are not).
+ * Run with
+ *   java -cp server.jar server.SpectatorLoad [transport] [count] [seconds] [port]
+ * with transport virtual (the default), threads or nio. Virtual threads
+ * need Java 21 or later; on an older runtime the test says so and exits
+ * with status 2 rather than measuring platform threads instead. Exits
+ * with status 1 if some spectator did not get its intro in <seconds>. */
+public class SpectatorLoad {
+  protected static final byte[] HELLO = "finish\nintro\nnext\n".getBytes();
+  
+  /** Thread counts of this JVM. */
+  protected static class Threads {
+    final int platform, carriers;
+    
+    Threads () {
+      platform = ManagementFactory.getThreadMXBean().getThreadCount();
+      int n = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().matches("ForkJoinPool-\\d+-worker-\\d+")) {
+          n++;
+        }
+      }
+      carriers = n;
+    }
+    
+    @Override
+    public String toString () {
+      return String.format("%d platform threads, %d carrier threads", platform, carriers);
+    }
+  }
+  
+  /** Starts a server with <transport> on <port>, for spectators only.
+   * Returns the length of the intro they get. */
+  protected static int startServer (String transport, int port) throws IOException {
+    Random rng = new Random(1023456789);
+    Terrain terra = Terrain.mildRandom(rng, 100, 100);
+    List<InitialUnit> initial = InitialUnit.dummyStartingPositions(terra);
+    Game game = new Game(rng, terra, Visibility.of(terra, Constants.sight), initial);
+    GameServer gserver = new GameServer(game, false, Duration.ofMillis(Constants.turnMillis));
+    Lobby lobby = new Lobby();
+    InetSocketAddress addr = new InetSocketAddress("127.0.0.1", port);
+    if (transport.equals("nio")) {
+      new NioReceptionist(addr, 1, client -> new ClientProtocol(client, lobby, gserver)).start();
+    }
+    else {
+      ClientThreads threads = new ClientThreads(transport.equals("virtual"));
+      Thread listener = new Thread(new Listener(new Receptionist(addr), lobby, gserver, threads), "listener");
+      listener.setDaemon(true);
+      listener.start();
+    }
+    return gserver.getIntro(Constants.observer).length() + 1;
+  }
+  
+  public static void main (String[] args) throws IOException {
+    String transport = (args.length > 0 ? args[0] : "virtual");
+    int count = (args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+    int seconds = (args.length > 2 ? Integer.parseInt(args[2]) : 120);
+    int port = (args.length > 3 ? Integer.parseInt(args[3]) : 4250);
+    if (transport.equals("virtual") && !new ClientThreads(true).isVirtual()) {
+      System.out.printf("no virtual threads in Java %d, run this on Java 21 or later%n", Runtime.version().feature());
+      System.exit(2);
+    }
+    
+    Threads before = new Threads();
+    int introBytes = startServer(transport, port);
+    System.out.printf("transport %s, %d spectators; before: %s%n", transport, count, before);
+    
+    // connect everyone; the bytes each one read are attached to its key
+    long start = System.nanoTime();
+    long end = start + seconds * 1000000000L;
+    InetSocketAddress server = new InetSocketAddress("127.0.0.1", port);
+    Selector selector = Selector.open();
+    ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+    int failed = 0;
+    for (int i = 0; i < count; i++) {
+      try {
+        SocketChannel channel = SocketChannel.open(server);
+        channel.write(ByteBuffer.wrap(HELLO));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new long[1]);
+      }
+      catch (IOException exc) {
+        if (failed++ == 0) {
+          System.out.printf("cannot connect spectator %d [%s]%n", i, exc.getMessage());
+        }
+      }
+    }
+    double connected = (System.nanoTime() - start) / 1e9;
+    System.out.printf("connected in %.1f s, %d failed; %s%n", connected, failed, new Threads());
+    
+    // read until every spectator has its intro
+    int answered = 0;
+    int peakPlatform = 0, peakCarriers = 0;
+    long report = 0;
+    while (answered + failed < count && System.nanoTime() < end) {
+      selector.select(100);
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        long[] read = (long[])key.attachment();
+        buf.clear();
+        int n;
+        try {
+          n = ((SocketChannel)key.channel()).read(buf);
+        }
+        catch (IOException exc) {
+          n = -1;
+        }
+        if (n < 0) {
+          System.out.printf("a spectator was disconnected after %d bytes%n", read[0]);
+          key.cancel();
+          failed++;
+          continue;
+        }
+        if (read[0] < introBytes && read[0] + n >= introBytes) {
+          answered++;
+        }
+        read[0] += n;
+      }
+      if (System.nanoTime() - report >= 1000000000L) {
+        report = System.nanoTime();
+        Threads now = new Threads();
+        peakPlatform = Math.max(peakPlatform, now.platform);
+        peakCarriers = Math.max(peakCarriers, now.carriers);
+        System.out.printf("%d of %d intros read; %s%n", answered, count, now);
+      }
+    }
+    double done = (System.nanoTime() - start) / 1e9;
+    Threads after = new Threads();
+    peakPlatform = Math.max(peakPlatform, after.platform);
+    peakCarriers = Math.max(peakCarriers, after.carriers);
+    System.out.printf("transport %s: %d of %d spectators got their intro in %.1f s (connected in %.1f s)%n", transport, answered, count, done, connected);
+    System.out.printf("  idle: %s; peak: %d platform, %d carrier threads; before: %s%n", after, peakPlatform, peakCarriers, before);
+    System.exit(answered == count ? 0 : 1);
+  }
+}
@@ -0,0 +1,302 @@
+package server.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/** A Client on a non-blocking SocketChannel, served by an 'EventLoop'.
+ * Instead of being asked for lines with 'receive', it cuts what it
+ * reads into lines itself and hands them to its 'Conversation'.
+ * Messages to send are queued and written by the loop whenever the
+ * socket takes them; byte arrays are not copied, so a view sent to many
+ * observers is kept in memory once. */
+public class ChannelClient extends Client implements EventLoop.Handler {
+  /** Longest line accepted, in bytes (commands of a large army). */
+  public static final int MAX_LINE = 1 << 24;
+  /** Most bytes waiting to be sent before the client is dropped as
+   * too slow. */
+  public static final long MAX_QUEUED = 1L << 26;
+  /** At most this many buffers are written by one call. */
+  protected static final int GATHER = 64;
+  
+  protected SocketChannel channel;
+  protected EventLoop loop;
+  protected SelectionKey key;
+  protected Conversation conversation;
+  
+  // input, only touched by the loop
+  protected byte[] partial; // the line being read
+  protected int partialLength;
+  protected String[] lines; // ring of the lines read but not handled yet
+  protected long[] arrivals; // when each of 'lines' arrived
+  protected int first; // index of the oldest line in the ring
+  protected int pending; // number of lines in the ring
+  protected boolean finished; // the conversation is over
+  protected volatile boolean closed;
+  
+  // output
+  protected Queue<ByteBuffer> out;
+  protected AtomicLong queued; // bytes in 'out'
+  protected AtomicBoolean flushing; // is a flush scheduled or waiting for OP_WRITE?
+  protected ByteBuffer[] gather;
+  
+  /** Creates a client on <channel0>, to be served by <loop0>. Nothing is
+   * read until 'start'. */
+  public ChannelClient (SocketChannel channel0, EventLoop loop0) throws IOException {
+    super();
+    channel = channel0;
+    loop = loop0;
+    channel.socket().setTcpNoDelay(true); // turns may be shorter than delayed acks
+    partial = new byte[256];
+    lines = new String[16];
+    arrivals = new long[16];
+    out = new ConcurrentLinkedQueue<ByteBuffer>();
+    queued = new AtomicLong();
+    flushing = new AtomicBoolean();
+    gather = new ByteBuffer[GATHER];
+  }
+  
+  /** Starts reading, handing the lines to <conversation0>. */
+  public void start (Conversation conversation0) {
+    conversation = conversation0;
+    loop.execute(() -> {
+      try {
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+      }
+      catch (IOException exc) {
+        failed(null, exc);
+      }
+    });
+  }
+  
+  /** Lines are handed to the conversation, they cannot be asked for. */
+  @Override
+  public String receive () throws IOException {
+    throw new IOException("a ChannelClient is driven by its event loop, not by 'receive'");
+  }
+  
+  @Override
+  public void send (String msg) {
+    send(msg.getBytes(Charset.defaultCharset()));
+  }
+  
+  /** Queues <msg> and a newline, the same as 'Client.send' would send.
+   * <msg> must not be modified afterwards. */
+  @Override
+  public void send (byte[] msg) {
+    if (closed) {
+      return;
+    }
+    out.add(ByteBuffer.wrap(msg));
+    out.add(ByteBuffer.wrap(NEWLINE));
+    if (queued.addAndGet(msg.length + 1) > MAX_QUEUED) {
+      logger.info(String.format("%d: more than %d bytes waiting to be sent, dropping the client", id, MAX_QUEUED));
+      die();
+      return;
+    }
+    if (flushing.compareAndSet(false, true)) {
+      loop.execute(this::flush);
+    }
+  }
+  
+  /** Writes as much of the queue as the socket takes. If something is
+   * left, waits for OP_WRITE. Runs on the loop. */
+  protected void flush () {
+    if (closed) {
+      return;
+    }
+    try {
+      while (true) {
+        int n = 0;
+        for (ByteBuffer buf : out) {
+          if (n == GATHER) {
+            break;
+          }
+          gather[n++] = buf;
+        }
+        if (n == 0) {
+          if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+          }
+          flushing.set(false);
+          if (out.isEmpty() || !flushing.compareAndSet(false, true)) {
+            break; // else something was queued meanwhile, go on
+          }
+          continue;
+        }
+        long written = channel.write(gather, 0, n);
+        queued.addAndGet(-written);
+        int done = 0;
+        while (done < n && !gather[done].hasRemaining()) {
+          out.poll();
+          done++;
+        }
+        Arrays.fill(gather, 0, n, null);
+        if (done < n) { // the socket is full
+          if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          }
+          return;
+        }
+      }
+    }
+    catch (IOException exc) {
+      failed(key, exc);
+      return;
+    }
+    if (finished && out.isEmpty()) {
+      close();
+    }
+  }
+  
+  @Override
+  public void ready (SelectionKey key0) throws IOException {
+    if (key0.isWritable()) {
+      flush();
+    }
+    if (key0.isValid() && key0.isReadable()) {
+      read();
+    }
+  }
+  
+  /** Reads what is there, cuts it into lines and handles them. */
+  protected void read () throws IOException {
+    ByteBuffer buf = loop.readBuffer();
+    buf.clear();
+    int n = channel.read(buf);
+    long now = System.nanoTime();
+    if (n < 0) {
+      close();
+      return;
+    }
+    buf.flip();
+    while (buf.hasRemaining()) {
+      byte b = buf.get();
+      if (b == '\n') {
+        int len = partialLength;
+        if (len > 0 && partial[len - 1] == '\r') {
+          len--;
+        }
+        addLine(new String(partial, 0, len, Charset.defaultCharset()), now);
+        partialLength = 0;
+        continue;
+      }
+      if (partialLength == partial.length) {
+        if (partial.length >= MAX_LINE) {
+          logger.info(String.format("%d: line longer than %d bytes, dropping the client", id, MAX_LINE));
+          close();
+          return;
+        }
+        partial = Arrays.copyOf(partial, 2 * partial.length);
+      }
+      partial[partialLength++] = b;
+    }
+    handleLines();
+  }
+  
+  /** Appends <line>, read at <time>, to the ring, growing it if full. */
+  protected void addLine (String line, long time) {
+    if (pending == lines.length) {
+      String[] moreLines = new String[2 * pending];
+      long[] moreArrivals = new long[2 * pending];
+      for (int i = 0; i < pending; i++) {
+        int k = (first + i) % pending;
+        moreLines[i] = lines[k];
+        moreArrivals[i] = arrivals[k];
+      }
+      lines = moreLines;
+      arrivals = moreArrivals;
+      first = 0;
+    }
+    int k = (first + pending) % lines.length;
+    lines[k] = line;
+    arrivals[k] = time;
+    pending++;
+  }
+  
+  /** Hands the lines read so far to the conversation, until it is over
+   * or the client is put on hold. Runs on the loop. */
+  protected void handleLines () {
+    while (!finished && !closed && !isOnHold() && pending > 0) {
+      String line = lines[first];
+      arrival = arrivals[first];
+      lines[first] = null;
+      first = (first + 1) % lines.length;
+      pending--;
+      if (!conversation.onLine(line)) {
+        finished = true;
+        Arrays.fill(lines, null);
+        pending = 0;
+        if (!flushing.get()) {
+          close();
+        }
+      }
+    }
+    if (key != null && key.isValid()) { // read no further while on hold
+      int ops = key.interestOps();
+      key.interestOps(finished || isOnHold() ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+    }
+  }
+  
+  /** Queues the answer and handles the lines that came meanwhile, on the
+   * loop. May be called from any thread. */
+  @Override
+  public void resume (byte[] msg) {
+    send(msg);
+    loop.execute(() -> {
+      holdLock.lock();
+      try {
+        onHold = false;
+      }
+      finally {
+        holdLock.unlock();
+      }
+      handleLines();
+    });
+  }
+  
+  /** Nothing to wait for, the loop sends the answers. */
+  @Override
+  public void awaitResume () {
+  }
+  
+  @Override
+  public void failed (SelectionKey key0, IOException exc) {
+    logger.info(String.format("%d: IOException on channel, closing it [%s]", id, exc.getMessage()));
+    close();
+  }
+  
+  /** Closes the channel and ends the conversation. Runs on the loop. */
+  protected void close () {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    out.clear();
+    try {
+      channel.close();
+    }
+    catch (IOException exc) {
+      logger.info(String.format("%d: IOException while closing channel [%s]", id, exc.getMessage()));
+    }
+    if (conversation != null) {
+      conversation.onClose();
+    }
+  }
+  
+  /** Closes the channel, from any thread. */
+  @Override
+  public void die () {
+    if (loop.inLoop()) {
+      close();
+    }
+    else {
+      loop.execute(this::close);
+    }
+  }
+}
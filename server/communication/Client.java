@@ -2,46 +2,184 @@ package server.communication;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 import java.util.logging.*;
 
 
 /** Can send and receive messages from the otherside. Also, we can set
  * and retrieve its player ID, which is done in the lobby. This
- * parameter is later used in the game. */
+ * parameter is later used in the game.
+ * 
+ * Blocking, but without monitors: lines are cut out of the raw socket
+ * stream here, and locks are ReentrantLocks, so a client served by a
+ * virtual thread (see 'ClientThreads') never pins its carrier thread
+ * while it waits. */
 public class Client {
   protected static Logger logger = Logger.getLogger("Server");
+  protected static final byte[] NEWLINE = {'\n'};
   
   public int id;
   
   protected Socket socket;
-  protected Scanner sc;
-  protected PrintStream ps;
+  protected InputStream in;
+  protected OutputStream out;
+  protected final ReentrantLock sendLock; // one message at a time
+  
+  // input, only touched by the thread that receives
+  protected byte[] inBuf; // read from the socket, from inPos to inLen
+  protected int inPos, inLen;
+  protected byte[] line; // the line being read
+  protected long readAt; // when the last read returned, as given by 'System.nanoTime'
+  protected long arrival; // when the last line handed out arrived
+  
+  protected final ReentrantLock holdLock;
+  protected final Condition resumed;
+  protected boolean onHold; // waiting for the answer to a request?
+  protected byte[] answer; // the answer, once it is ready
+  
+  /** For subclasses with a transport of their own. Starting id is -1. */
+  protected Client () {
+    id = -1;
+    sendLock = new ReentrantLock();
+    holdLock = new ReentrantLock();
+    resumed = holdLock.newCondition();
+  }
   
   /** Creates a Client that listens and sends to <socket0>. Starting
    * id is -1, indicating 'undefined' (such a Client will do nothing
    * once the game starts). */
   public Client (Socket socket0) throws IOException {
+    this();
     socket = socket0;
-    id = -1;
-    sc = new Scanner(socket.getInputStream());
-    ps = new PrintStream(socket.getOutputStream());
+    socket.setTcpNoDelay(true); // turns may be shorter than delayed acks
+    in = socket.getInputStream();
+    out = socket.getOutputStream();
+    inBuf = new byte[1 << 13];
+    line = new byte[256];
   }
   
   /** Blocking. Waits for and returns the next line of input. Throws
    * an IOException if there is no further input. */
   public String receive () throws IOException {
-    try {
-      return sc.nextLine();
+    int length = 0;
+    while (true) {
+      if (inPos == inLen) {
+        inPos = 0;
+        inLen = Math.max(0, in.read(inBuf));
+        readAt = System.nanoTime();
+        if (inLen == 0) {
+          if (length == 0) {
+            throw new IOException("Error while receiving: end of input");
+          }
+          break; // the last line, without a newline
+        }
+      }
+      byte b = inBuf[inPos++];
+      if (b == '\n') {
+        break;
+      }
+      if (length == line.length) {
+        line = Arrays.copyOf(line, 2 * line.length);
+      }
+      line[length++] = b;
     }
-    catch (NoSuchElementException exc) {
-      throw new IOException("Error while receiving: scanner threw NoSuchElementException", exc);
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
     }
+    arrival = readAt;
+    return new String(line, 0, length, Charset.defaultCharset());
+  }
+  
+  /** Returns when the last line handed out (by 'receive', or to the
+   * conversation) arrived, as given by 'System.nanoTime': when the read
+   * that completed it returned. */
+  public long getArrival () {
+    return arrival;
   }
   
   /** Sends the provided message to the otherside. Ignores all errors. */
   public void send (String msg) {
-    ps.println(msg);
+    send(msg.getBytes(Charset.defaultCharset()));
+  }
+  
+  /** Sends the provided message, given as bytes, to the otherside, the
+   * same as 'send(String)' would send it as text: the message and then a
+   * newline, with no other message in between. <msg> is not copied, so
+   * a view shared by many clients stays shared. Ignores all errors. */
+  public void send (byte[] msg) {
+    sendLock.lock();
+    try {
+      out.write(msg);
+      out.write(NEWLINE);
+    }
+    catch (IOException exc) {
+      // like a PrintStream, we do not care
+    }
+    finally {
+      sendLock.unlock();
+    }
+  }
+  
+  /** Puts the client on hold: a request of the client cannot be
+   * answered yet, so no further requests should be handled until the
+   * answer is given to 'resume'. Called by the conversation (see
+   * 'Conversation'), from the thread that handles the request. */
+  public void hold () {
+    holdLock.lock();
+    try {
+      onHold = true;
+    }
+    finally {
+      holdLock.unlock();
+    }
+  }
+  
+  /** Returns true if the client is on hold. */
+  public boolean isOnHold () {
+    holdLock.lock();
+    try {
+      return onHold;
+    }
+    finally {
+      holdLock.unlock();
+    }
+  }
+  
+  /** Answers the request the client is on hold for with <msg>, and
+   * takes it off hold. May be called from any thread; the answer is
+   * sent by the thread that waits in 'awaitResume'. */
+  public void resume (byte[] msg) {
+    holdLock.lock();
+    try {
+      answer = msg;
+      onHold = false;
+      resumed.signalAll();
+    }
+    finally {
+      holdLock.unlock();
+    }
+  }
+  
+  /** Blocking. Waits until the client is not on hold, and sends the
+   * answer it was on hold for, if any. */
+  public void awaitResume () {
+    byte[] msg;
+    holdLock.lock();
+    try {
+      while (onHold) {
+        resumed.awaitUninterruptibly();
+      }
+      msg = answer;
+      answer = null;
+    }
+    finally {
+      holdLock.unlock();
+    }
+    if (msg != null) {
+      send(msg);
+    }
   }
   
   /** Closes the underlying socket. */
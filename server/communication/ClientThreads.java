@@ -0,0 +1,66 @@
+package server.communication;
+
+import java.lang.reflect.*;
+import java.util.logging.*;
+
+
+/** Makes the threads that serve blocking clients, one thread each: virtual
+ * threads where the runtime has them, so that thousands of mostly idle
+ * clients (spectators, say) cost a few carrier threads instead of a
+ * platform thread each. Virtual threads are looked up by reflection, as
+ * the server is built for runtimes without them too; there, platform
+ * daemon threads are made instead. */
+public class ClientThreads {
+  protected static Logger logger = Logger.getLogger("Server");
+  
+  protected final boolean virtual;
+  protected final Object builder; // a 'Thread.Builder', if virtual
+  protected final Method unstarted; // 'Thread.Builder.unstarted(Runnable)'
+  protected long counter;
+  
+  /** Makes virtual threads if <virtual0> and the runtime has them, else
+   * platform daemon threads. */
+  public ClientThreads (boolean virtual0) {
+    Object builder0 = null;
+    Method unstarted0 = null;
+    if (virtual0) {
+      try {
+        builder0 = Thread.class.getMethod("ofVirtual").invoke(null);
+        unstarted0 = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+      }
+      catch (ReflectiveOperationException | UnsupportedOperationException exc) {
+        logger.info(String.format("no virtual threads in Java %s, serving clients with platform threads [%s]", Runtime.version().feature(), exc));
+        builder0 = null;
+        unstarted0 = null;
+      }
+    }
+    virtual = (unstarted0 != null);
+    builder = builder0;
+    unstarted = unstarted0;
+  }
+  
+  /** Returns true if the threads made are virtual. */
+  public boolean isVirtual () {
+    return virtual;
+  }
+  
+  /** Starts a thread that runs <task>. The thread does not keep the
+   * server alive. */
+  public Thread start (Runnable task) {
+    Thread thread = null;
+    if (virtual) {
+      try {
+        thread = (Thread)unstarted.invoke(builder, task);
+      }
+      catch (ReflectiveOperationException exc) {
+        logger.info(String.format("cannot make a virtual thread, making a platform one [%s]", exc));
+      }
+    }
+    if (thread == null) {
+      thread = new Thread(task, String.format("client-%d", counter++));
+      thread.setDaemon(true);
+    }
+    thread.start();
+    return thread;
+  }
+}
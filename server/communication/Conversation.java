@@ -0,0 +1,17 @@
+package server.communication;
+
+
+/** One side of a line-based conversation with a client. The transport
+ * hands it the lines the client sends, one at a time and never
+ * concurrently, and does not hand it the next line while the client is
+ * on hold (see 'Client.hold'). */
+public interface Conversation {
+  /** Handles line <line> of the client. Returns false when the
+   * conversation is over and no further lines should be handed to it. */
+  boolean onLine (String line) ;
+  
+  /** Called once the connection is gone, whether the conversation was
+   * over or not. */
+  default void onClose () {
+  }
+}
@@ -0,0 +1,116 @@
+package server.communication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+
+/** A thread with a Selector, which serves many connections: whenever
+ * one of its channels is ready, the handler attached to the channel's
+ * key is called, on this thread. Other threads hand work to the loop
+ * with 'execute'. See 'NioReceptionist'. */
+public class EventLoop implements Runnable {
+  protected static Logger logger = Logger.getLogger("Server");
+  
+  /** Size of the buffer that all channels of a loop read into. */
+  public static final int READ_BUFFER = 1 << 16;
+  
+  /** Reacts to the readiness of the channel of <key>. */
+  public interface Handler {
+    void ready (SelectionKey key) throws IOException ;
+    
+    /** Called if 'ready' threw, or the channel failed otherwise. */
+    void failed (SelectionKey key, IOException exc) ;
+  }
+  
+  protected Selector selector;
+  protected Queue<Runnable> tasks;
+  protected ByteBuffer readBuffer; // shared by the channels, one read at a time
+  protected Thread thread;
+  
+  /** Opens a loop, which does nothing until started. */
+  public EventLoop () throws IOException {
+    selector = Selector.open();
+    tasks = new ConcurrentLinkedQueue<Runnable>();
+    readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+  }
+  
+  /** Starts the thread of the loop, named <name>. */
+  public void start (String name) {
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  /** Runs <task> on the thread of the loop, soon. */
+  public void execute (Runnable task) {
+    tasks.add(task);
+    if (Thread.currentThread() != thread) {
+      selector.wakeup();
+    }
+  }
+  
+  /** Returns true if called from the thread of the loop. */
+  public boolean inLoop () {
+    return Thread.currentThread() == thread;
+  }
+  
+  /** Registers <channel> for <ops>, with <handler> attached. Must be
+   * called on the thread of the loop. */
+  public SelectionKey register (SelectableChannel channel, int ops, Handler handler) throws IOException {
+    channel.configureBlocking(false);
+    return channel.register(selector, ops, handler);
+  }
+  
+  /** Returns the buffer the channels of this loop read into. Only to be
+   * used on the thread of the loop, and not kept across calls. */
+  public ByteBuffer readBuffer () {
+    return readBuffer;
+  }
+  
+  @Override
+  public void run () {
+    while (true) {
+      try {
+        if (tasks.isEmpty()) {
+          selector.select();
+        }
+        else { // tasks queued by the loop itself, no wakeup is coming
+          selector.selectNow();
+        }
+      }
+      catch (IOException exc) {
+        logger.info(String.format("IOException in select, ending the event loop [%s]", exc.getMessage()));
+        return;
+      }
+      for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+        try {
+          task.run();
+        }
+        catch (RuntimeException exc) {
+          logger.info(String.format("task of the event loop failed [%s]", exc));
+        }
+      }
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        Handler handler = (Handler)key.attachment();
+        try {
+          if (key.isValid()) {
+            handler.ready(key);
+          }
+        }
+        catch (IOException exc) {
+          handler.failed(key, exc);
+        }
+        catch (CancelledKeyException exc) {
+          // closed while we were at it, nothing to do
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package server.communication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+
+/** Like 'Receptionist', but without a thread per client: connections
+ * are accepted on a non-blocking ServerSocketChannel and spread over a
+ * small group of 'EventLoop's, which serve them as 'ChannelClient's.
+ * Every new client gets a conversation from <conversations>. */
+public class NioReceptionist implements EventLoop.Handler {
+  protected static Logger logger = Logger.getLogger("Server");
+  
+  protected ServerSocketChannel server;
+  protected EventLoop[] loops;
+  protected Function<Client, Conversation> conversations;
+  protected int next; // loop of the next client
+  
+  /** Binds to <addr>, with <loopCount> event loops. Nothing is accepted
+   * until 'start'. */
+  public NioReceptionist (SocketAddress addr, int loopCount, Function<Client, Conversation> conversations0) throws IOException {
+    server = ServerSocketChannel.open();
+    server.bind(addr, 1024);
+    loops = new EventLoop[Math.max(1, loopCount)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+    conversations = conversations0;
+  }
+  
+  /** Starts the loops; the first one also accepts connections. */
+  public void start () {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i].start(String.format("event-loop-%d", i));
+    }
+    loops[0].execute(() -> {
+      try {
+        loops[0].register(server, SelectionKey.OP_ACCEPT, this);
+      }
+      catch (IOException exc) {
+        failed(null, exc);
+      }
+    });
+  }
+  
+  /** Accepts all pending connections. */
+  @Override
+  public void ready (SelectionKey key) throws IOException {
+    for (SocketChannel channel = server.accept(); channel != null; channel = server.accept()) {
+      channel.configureBlocking(false);
+      ChannelClient client;
+      try {
+        client = new ChannelClient(channel, loops[next]);
+      }
+      catch (IOException exc) {
+        logger.info(String.format("IOException while setting up a connection, dropping it [%s]", exc.getMessage()));
+        channel.close();
+        continue;
+      }
+      next = (next + 1) % loops.length;
+      client.start(conversations.apply(client));
+    }
+  }
+  
+  @Override
+  public void failed (SelectionKey key, IOException exc) {
+    logger.info(String.format("IOException while accepting, no more clients. [%s]", exc.getMessage()));
+    if (key != null) {
+      key.cancel();
+    }
+  }
+}
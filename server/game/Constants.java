@@ -21,6 +21,8 @@ public class Constants {
   
   public static final int maxTurns = 200;
   public static final int turnMillis = 300;
+  public static final int keyframeTurns = 20; // delta mode: a full view at least this often
+  public static final int commandsPerTurn = 16; // most 'commands' messages queued per player and turn
   
   public static final int maxHeight = 4;
 }
@@ -0,0 +1,16 @@
+package server.game;
+
+
+/** A player that runs inside the server's JVM, see 'HeadlessMatch'. It
+ * receives the same texts as a networked client and answers with what a
+ * networked client would send after the word 'commands'. */
+public interface Controller {
+  /** Called once before the first turn, with the answer to 'intro'. */
+  default void intro (String intro) {
+  }
+  
+  /** Returns the commands for the current turn (a count followed by
+   * that many commands), given the current game state, which is the
+   * same as the answer to 'get'. May return null to do nothing. */
+  String play (String state) ;
+}
@@ -1,12 +1,18 @@
 package server.game;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
 import java.util.logging.*;
 import java.time.*;
 import server.communication.Client;
+import server.communication.Conversation;
 import server.game.logic.Game;
+import server.game.logic.StateEncoder;
 
 
 /** A runnable that runs the game and has methods that clients can
@@ -14,93 +20,379 @@ import server.game.logic.Game;
 public class GameServer implements Runnable {
   protected static Logger logger = Logger.getLogger("Game");
   
-  protected Clock clock;
+  protected Duration turnTime; // duration of one turn, or the budget in turbo mode
+  protected long spinNanos; // spin instead of sleeping for the end of a turn
+  protected boolean turbo; // advance as soon as both players have sent commands
+  protected boolean early; // advance as soon as both players have committed their commands
   
   protected Game game;
   protected BlockingQueue<String> atkCommands, defCommands;
+  protected final Object turnLock; // guards 'submitted' and draining of commands
+  protected int collecting; // the turn whose commands are collected
+  protected boolean[] submitted; // per player: sent commands for this turn?
+  protected boolean[] committed; // per player: marked the commands for this turn final?
+  protected int[] submissions; // per player: 'commands' messages queued this turn
+  protected List<List<String>> deferred; // per player: commands sent after 'commit'
   
   // observer stuff
-  protected final String mapInfo;
-  protected List<String> atkHistory, defHistory, obsHistory;
+  protected final String mapInfo; // null if the visibility graph is lazy
+  protected StateEncoder encoder;
+  protected StateEncoder.Snapshot snapshot; // of the turn being rendered
+  protected final ExecutorService renderer; // renders and fans out, see 'run'
+  protected StageTimes times; // latencies of the stages of a turn
+  protected Histogram jitter, simulation; // see 'run'
+  protected List<byte[]> atkHistory, defHistory, obsHistory; // views as ASCII bytes
+  protected List<Waiter> atkWaiters, defWaiters, obsWaiters;
+  protected final ReentrantLock historyLock; // guards the histories and waiters
+  protected final Condition turnAdded; // signalled when a history grows
   
   /** Constructs a game server that will run the provided game. The
    * provided game should be freshly constructed. */
   public GameServer (Game game0) {
-    clock = Clock.systemDefaultZone();
+    this(game0, false, Duration.ofMillis(Constants.turnMillis));
+  }
+  
+  /** Constructs a game server that will run the provided game. In turbo
+   * mode, a turn ends as soon as both players have sent their commands,
+   * or when <turnTime0> runs out, whichever comes first. Otherwise each
+   * turn lasts exactly <turnTime0>. */
+  public GameServer (Game game0, boolean turbo0, Duration turnTime0) {
+    this(game0, turbo0, false, turnTime0);
+  }
+  
+  /** Same as above, but with <early0> a turn also ends as soon as both
+   * players have committed their commands (see 'Session'), or when
+   * <turnTime0> runs out. */
+  public GameServer (Game game0, boolean turbo0, boolean early0, Duration turnTime0) {
+    turnTime = turnTime0;
+    spinNanos = 0;
+    turbo = turbo0;
+    early = early0;
     
     game = game0;
     atkCommands = new LinkedBlockingQueue<String>();
     defCommands = new LinkedBlockingQueue<String>();
+    turnLock = new Object();
+    collecting = game.getTurn();
+    submitted = new boolean[2];
+    committed = new boolean[2];
+    submissions = new int[2];
+    deferred = new ArrayList<List<String>>();
+    deferred.add(new ArrayList<String>());
+    deferred.add(new ArrayList<String>());
     
     // initial data
-    mapInfo = game.getMapString();
-    atkHistory = new ArrayList<String>();
-    defHistory = new ArrayList<String>();
-    obsHistory = new ArrayList<String>();
+    // a lazy graph is listed a band at a time on demand (see 'sendIntro')
+    mapInfo = (game.isMapLazy() ? null : game.getMapString());
+    encoder = new StateEncoder(game);
+    snapshot = new StateEncoder.Snapshot();
+    renderer = Executors.newSingleThreadExecutor(task -> { // the thread is started by the first turn
+      Thread thread = new Thread(task, "render");
+      thread.setDaemon(true);
+      return thread;
+    });
+    times = new StageTimes();
+    jitter = new Histogram();
+    simulation = new Histogram();
+    atkHistory = new ArrayList<byte[]>();
+    defHistory = new ArrayList<byte[]>();
+    obsHistory = new ArrayList<byte[]>();
+    atkWaiters = new ArrayList<Waiter>();
+    defWaiters = new ArrayList<Waiter>();
+    obsWaiters = new ArrayList<Waiter>();
+    historyLock = new ReentrantLock();
+    turnAdded = historyLock.newCondition();
+    record(encoder.snapshot(snapshot));
+  }
+  
+  /** Encodes the views of <snap>, indexed by id + 1. */
+  protected byte[][] render (StateEncoder.Snapshot snap) {
+    ByteBuffer[] views = encoder.encode(snap);
+    byte[][] res = new byte[3][];
+    for (int i = 0; i < 3; i++) {
+      res[i] = new byte[views[i].remaining()];
+      views[i].get(res[i]);
+    }
+    return res;
+  }
+  
+  /** Appends <views> (see 'render') to the histories and wakes up the
+   * clients waiting for them: threads waiting in 'getAtTime' and the
+   * like, and clients on hold until the turn (see 'Session'). */
+  protected void fanOut (byte[][] views) {
+    List<Waiter> ready = new ArrayList<Waiter>();
     for (int id = 1; id >= -1; id--) {
-      sourceOf(id).add(game.getData(id));
+      List<byte[]> source = sourceOf(id);
+      int turn;
+      historyLock.lock();
+      try {
+        source.add(views[id + 1]);
+        turnAdded.signalAll();
+        turn = source.size() - 1;
+        List<Waiter> waiters = waitersOf(id);
+        ready.clear();
+        int kept = 0; // in order of arrival
+        for (int i = 0; i < waiters.size(); i++) {
+          Waiter waiter = waiters.get(i);
+          if (waiter.need <= source.size()) {
+            ready.add(waiter);
+          }
+          else {
+            waiters.set(kept++, waiter);
+          }
+        }
+        waiters.subList(kept, waiters.size()).clear();
+      }
+      finally {
+        historyLock.unlock();
+      }
+      for (Waiter waiter : ready) {
+        waiter.session.client.resume(waiter.session.answer(waiter.base, turn));
+      }
     }
   }
   
+  /** Encodes the views of <snap> and appends them to the histories,
+   * timing both stages. */
+  protected void record (StateEncoder.Snapshot snap) {
+    long start = System.nanoTime();
+    byte[][] views = render(snap);
+    start = times.record(StageTimes.Stage.RENDER, start);
+    fanOut(views);
+    times.record(StageTimes.Stage.FANOUT, start);
+  }
+  
+  /** Spins instead of sleeping for the last <spin> of each turn, so the
+   * next one starts on time even if sleeping overshoots. Costs a core
+   * for that long; off (zero) by default. Call before 'run'. */
+  public void setSpin (Duration spin) {
+    spinNanos = spin.toNanos();
+  }
+  
+  /** Returns the latencies of the stages of the turns so far. */
+  public StageTimes getStageTimes () {
+    return times;
+  }
+  
+  /** A turn is a pipeline of stages: the commands are drained and given
+   * to the game, the game is advanced, the views are rendered, and
+   * finally fanned out to the histories. After the game is advanced,
+   * what the views are made of is copied out of it (see
+   * 'StateEncoder.snapshot'), and the last two stages run from the copy
+   * on a worker thread, while the next turn is waited for, drained and
+   * simulated. Only the next copy waits for them to finish, so the
+   * views never see a half-advanced state.
+   * 
+   * Turns are scheduled at a fixed rate: each ends one turn time after
+   * the previous one was due to end, whatever the simulation took or
+   * the sleep overshot, so lateness does not add up. A turn that ends
+   * early (turbo or early mode) starts the schedule anew. If the server
+   * falls more than a whole turn behind, the schedule starts anew too
+   * rather than running the missed turns back to back. How late each
+   * scheduled turn started is recorded in 'getJitter', the time
+   * 'Game.advance' took in 'getSimulation'. */
   @Override
   public void run () {
     logger.info(String.format("starting turn %d", game.getTurn()));
-    Duration turnTime = Duration.ofMillis(Constants.turnMillis); // duration of one turn
-    Instant start = clock.instant(); // start of the turn
+    long turnNanos = turnTime.toNanos();
+    long deadline = System.nanoTime() + turnNanos; // end of the turn
+    Future<?> rendering = null;
     
     while (!game.isGameOver()) {
-      // sleep a while, can't interrupt this...
-      Instant target = start.plus(turnTime);
-      while (true) {
-        Instant now = clock.instant();
-        if (target.isBefore(now)) {
-          break;
-        }
-        Duration duration = Duration.between(now, target);
-        int ns = duration.getNano();
-        int ms = ns / 1000000;
-        ns %= 1000000;
-        try {
-          Thread.sleep(1000 * duration.getSeconds() + ms, ns);
-        }
-        catch (InterruptedException exc) {
-          logger.info(String.format("Tried to interrupt game server... but it just ignores the interrupt. [%s]", exc.getMessage()));
+      // wait for the turn to end
+      boolean done = false; // did the players end it?
+      if (turbo || early) {
+        done = awaitCommands(deadline);
+      }
+      else {
+        sleepUntil(deadline);
+      }
+      
+      // schedule the next turn
+      long stage = System.nanoTime();
+      if (done) {
+        deadline = stage + turnNanos;
+      }
+      else {
+        jitter.record(stage - deadline);
+        deadline += turnNanos;
+        if (deadline < stage) {
+          logger.info(String.format("turn %d started %d ms late, restarting the schedule", game.getTurn(), (stage - deadline + turnNanos) / 1000000));
+          deadline = stage + turnNanos;
         }
       }
-      start = clock.instant();
       
       // communicate commands to the game
       List<String> atkList = new ArrayList<String>();
       List<String> defList = new ArrayList<String>();
-      atkCommands.drainTo(atkList);
-      defCommands.drainTo(defList);
+      synchronized (turnLock) {
+        atkCommands.drainTo(atkList);
+        defCommands.drainTo(defList);
+        collecting = game.getTurn() + 1;
+        for (int id : new int[]{Constants.attacker, Constants.defender}) {
+          List<String> later = deferred.get(id);
+          commandsOf(id).addAll(later);
+          submissions[id] = later.size();
+          submitted[id] = !later.isEmpty();
+          committed[id] = false;
+          later.clear();
+        }
+      }
       for (String cmd : atkList) {
         game.command(Constants.attacker, cmd);
       }
       for (String cmd : defList) {
         game.command(Constants.defender, cmd);
       }
+      stage = times.record(StageTimes.Stage.DRAIN, stage);
       
-      // advance the game state, update histories
+      // advance the game state, update histories in the background
       game.advance();
+      simulation.record(times.record(StageTimes.Stage.SIMULATE, stage) - stage);
       logger.info(String.format("starting turn %d", game.getTurn()));
-      for (int id = 1; id >= -1; id--) {
-        List<String> source = sourceOf(id);
-        synchronized (source) {
-          source.add(game.getData(id));
+      await(rendering); // of the previous turn, which used the snapshot
+      StateEncoder.Snapshot snap = encoder.snapshot(snapshot);
+      rendering = renderer.submit(() -> record(snap));
+    }
+    await(rendering);
+    renderer.shutdown();
+    logger.info(String.format("turn stages: %s", times));
+    logger.info(String.format("turn start jitter: %s", jitter));
+    logger.info(String.format("simulation: %s", simulation));
+  }
+  
+  /** Returns how late the turns that ended on schedule started. */
+  public Histogram getJitter () {
+    return jitter;
+  }
+  
+  /** Returns how long the simulation of each turn took. */
+  public Histogram getSimulation () {
+    return simulation;
+  }
+  
+  /** Waits until <task> (if any) is done. */
+  protected void await (Future<?> task) {
+    if (task == null) {
+      return;
+    }
+    while (true) {
+      try {
+        task.get();
+        return;
+      }
+      catch (InterruptedException exc) {
+        logger.info(String.format("Tried to interrupt game server... but it just ignores the interrupt. [%s]", exc.getMessage()));
+      }
+      catch (ExecutionException exc) {
+        logger.info(String.format("rendering of turn %d failed [%s]", game.getTurn(), exc.getCause()));
+        return;
+      }
+    }
+  }
+  
+  /** Sleeps until <deadline> (as given by 'System.nanoTime'), can't
+   * interrupt this... The last 'spinNanos' are spent spinning, as a
+   * sleep may overshoot by a scheduler tick. */
+  protected void sleepUntil (long deadline) {
+    while (true) {
+      long left = deadline - System.nanoTime() - spinNanos;
+      if (left <= 0) {
+        break;
+      }
+      try {
+        Thread.sleep(left / 1000000, (int)(left % 1000000));
+      }
+      catch (InterruptedException exc) {
+        logger.info(String.format("Tried to interrupt game server... but it just ignores the interrupt. [%s]", exc.getMessage()));
+      }
+    }
+    while (System.nanoTime() < deadline) {
+      Thread.onSpinWait();
+    }
+  }
+  
+  /** Waits until both players are done with this turn (see 'isDone'),
+   * but no longer than until <deadline> (as given by 'System.nanoTime';
+   * the last 'spinNanos' spinning, see 'sleepUntil'). Returns true if
+   * both players are done. */
+  protected boolean awaitCommands (long deadline) {
+    synchronized (turnLock) {
+      while (!isDone(Constants.attacker) || !isDone(Constants.defender)) {
+        long left = deadline - System.nanoTime() - spinNanos;
+        if (left <= 0) {
+          break;
+        }
+        try {
+          turnLock.wait(left / 1000000, (int)(left % 1000000));
+        }
+        catch (InterruptedException exc) {
+          logger.info(String.format("Tried to interrupt game server... but it just ignores the interrupt. [%s]", exc.getMessage()));
         }
       }
-      for (int id = 1; id >= -1; id--) {
-        List<String> source = sourceOf(id);
-        synchronized (source) {
-          source.notifyAll();
+    }
+    while (true) { // not holding 'turnLock', so the players can still be done
+      synchronized (turnLock) {
+        if (isDone(Constants.attacker) && isDone(Constants.defender)) {
+          return true;
         }
       }
+      if (System.nanoTime() >= deadline) {
+        return false;
+      }
+      Thread.onSpinWait();
     }
   }
   
+  /** Returns true if player <id> is done with this turn: has sent
+   * commands in turbo mode, or committed them in early mode. Must hold
+   * 'turnLock'. */
+  protected boolean isDone (int id) {
+    return (turbo && submitted[id]) || (early && committed[id]);
+  }
+  
   //////////// CLIENT METHODS //////////////////////////////////////////
   
+  /** Queues commands <desc> of player <id> for the current turn, or for
+   * the next one if the player has committed the current turn already.
+   * Returns false, queuing nothing, if the player already sent
+   * 'Constants.commandsPerTurn' messages for that turn. */
+  boolean submit (int id, String desc) {
+    synchronized (turnLock) {
+      if (committed[id]) {
+        List<String> later = deferred.get(id);
+        if (later.size() >= Constants.commandsPerTurn) {
+          return false;
+        }
+        later.add(desc);
+        return true;
+      }
+      if (submissions[id] >= Constants.commandsPerTurn) {
+        return false;
+      }
+      submissions[id]++;
+      commandsOf(id).add(desc);
+      submitted[id] = true;
+      turnLock.notifyAll();
+      return true;
+    }
+  }
+  
+  /** Marks the commands of player <id> for turn <t> as final. Returns
+   * false, changing nothing, if <t> is not the turn whose commands are
+   * being collected: a commit that comes after its turn ended must not
+   * end the next one. */
+  boolean commit (int id, int t) {
+    synchronized (turnLock) {
+      if (t != collecting) {
+        return false;
+      }
+      committed[id] = true;
+      turnLock.notifyAll();
+      return true;
+    }
+  }
+  
   /** Returns the player id, terrain, visibility, and current unit
    * configuration information for player <id>. */
   public String getIntro (int id) {
@@ -117,10 +409,36 @@ public class GameServer implements Runnable {
     StringBuilder bui = new StringBuilder();
     bui.append(id);
     bui.append("\n");
-    bui.append(mapInfo);
+    bui.append(mapInfo != null ? mapInfo : game.getMapString());
     return bui.toString();
   }
   
+  /** Passes 'getStatic' to <out> in pieces which, joined by newlines,
+   * make it up: a single piece, or if the visibility graph is lazy, a
+   * band of rows at a time (see 'Game.forMapString'). */
+  protected void forStatic (int id, Consumer<String> out) {
+    if (mapInfo != null) {
+      out.accept(getStatic(id));
+      return;
+    }
+    String[] prefix = {id + "\n"};
+    game.forMapString(piece -> {
+      out.accept(prefix[0] + piece);
+      prefix[0] = "";
+    });
+  }
+  
+  /** Sends 'getIntro' to <client>, in pieces if the visibility graph is
+   * lazy; the client gets the same bytes either way. */
+  protected void sendIntro (Client client) {
+    if (mapInfo != null) {
+      client.send(getIntro(client.id));
+      return;
+    }
+    forStatic(client.id, client::send);
+    client.send(getAtTime(client.id, -1));
+  }
+  
   /** Returns the queue of commands of player <id>. */
   BlockingQueue<String> commandsOf (int id) {
     switch (id) {
@@ -130,8 +448,18 @@ public class GameServer implements Runnable {
     return null;
   }
   
+  /** Returns the clients on hold until a turn of player <id> is in its
+   * history. */
+  List<Waiter> waitersOf (int id) {
+    switch (id) {
+      case Constants.attacker: return atkWaiters;
+      case Constants.defender: return defWaiters;
+    }
+    return obsWaiters;
+  }
+  
   /** Returns the list that provides information to player <id>. */
-  List<String> sourceOf (int id) {
+  List<byte[]> sourceOf (int id) {
     switch (id) {
       case Constants.attacker: return atkHistory;
       case Constants.defender: return defHistory;
@@ -145,81 +473,232 @@ public class GameServer implements Runnable {
    * 
    * Clients that did not receive any information yet should ask with t = -1. */
   public String getAtTime (int id, int t) {
-    List<String> source = sourceOf(id);
-    synchronized (source) {
+    return new String(viewAtTime(id, t), StandardCharsets.US_ASCII);
+  }
+  
+  /** Same as 'getAtTime', but returns the state as ASCII bytes, which
+   * must not be modified. */
+  public byte[] viewAtTime (int id, int t) {
+    historyLock.lock();
+    try {
+      return sourceOf(id).get(awaitTurn(id, t));
+    }
+    finally {
+      historyLock.unlock();
+    }
+  }
+  
+  /** Waits until the history of player <id> has size at least <t+1>,
+   * and returns the last turn in it. */
+  protected int awaitTurn (int id, int t) {
+    List<byte[]> source = sourceOf(id);
+    historyLock.lock();
+    try {
       while (source.size() <= t) {
         try {
-          source.wait();
+          turnAdded.await();
         }
         catch (InterruptedException exc) {
           logger.info(String.format("Interrupt during 'getAtTime' of gameServer... but it is ignored [%s]", exc.getMessage()));
         }
       }
-      int n = source.size();
-      return source.get(n-1);
+      return source.size() - 1;
+    }
+    finally {
+      historyLock.unlock();
     }
   }
   
   /** Returns the next game state for player <id>. */
   public String getNext (int id) {
-    List<String> source = sourceOf(id);
-    synchronized (source) {
+    return new String(nextView(id), StandardCharsets.US_ASCII);
+  }
+  
+  /** Same as 'getNext', but returns the state as ASCII bytes, which
+   * must not be modified. */
+  public byte[] nextView (int id) {
+    historyLock.lock();
+    try {
+      return sourceOf(id).get(nextTurn(id));
+    }
+    finally {
+      historyLock.unlock();
+    }
+  }
+  
+  /** Waits for the next turn and returns it, see 'getNext'. The
+   * condition is shared by all histories, so this waits until the
+   * history of <id> itself has grown. */
+  protected int nextTurn (int id) {
+    List<byte[]> source = sourceOf(id);
+    historyLock.lock();
+    try {
+      int size = source.size();
       try {
-        source.wait();
+        while (source.size() == size) {
+          turnAdded.await();
+        }
       }
       catch (InterruptedException exc) {
         logger.info(String.format("Interrupted during 'getNext', will return the current game state view immediately [%s]", exc.getMessage()));
       }
-      int n = source.size();
-      return source.get(n-1);
+      return source.size() - 1;
     }
+    finally {
+      historyLock.unlock();
+    }
+  }
+  
+  /** Returns the view of turn <turn> for player <id> in the delta mode:
+   * the changes since turn <base> (see 'ViewDelta'), or the full view
+   * if <full> is set or the client has no usable base. */
+  public byte[] deltaView (int id, int base, int turn, boolean full) {
+    List<byte[]> source = sourceOf(id);
+    byte[] from, to;
+    historyLock.lock();
+    try {
+      to = source.get(turn);
+      if (full || base < 0 || base >= source.size()) {
+        return ViewDelta.full(to);
+      }
+      from = source.get(base);
+    }
+    finally {
+      historyLock.unlock();
+    }
+    return ViewDelta.between(from, base, to);
   }
   
   /** Returns the entire history, from the point of view of player <id>.
    * Should only be called after the game concludes. */
   public String getHistory (int id) {
-    StringBuilder bui = new StringBuilder();
-    bui.append(getStatic(id));
-    bui.append("\n");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, false, StandardCharsets.US_ASCII);
+    printHistory(id, out);
+    out.flush();
+    return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+  }
+  
+  /** Prints 'getHistory' to <out>, without building all of it: views
+   * as they are kept, and the map in pieces (see 'forStatic'). */
+  public void printHistory (int id, PrintStream out) {
+    forStatic(id, piece -> {
+      out.print(piece);
+      out.print("\n");
+    });
     
-    List<String> source = sourceOf(id);
+    List<byte[]> source = sourceOf(id);
     boolean first = true;
-    for (String str : source) {
+    for (byte[] view : source) {
       if (!first) {
-        bui.append("\n");
+        out.print("\n");
       }
       first = false;
-      bui.append(str);
+      out.write(view, 0, view.length);
     }
-    return bui.toString();
   }
   
   /** Returns the score of the defender and then of the attacker. */
   public String getScore () {
+    return scoreOf(game);
+  }
+  
+  /** Returns the score of the defender and then of the attacker in the
+   * provided game. */
+  public static String scoreOf (Game game) {
     int atkScore = game.getScore();
     int defScore = game.getMaxScore() - atkScore;
     return String.format("%d\n%d\n", defScore, atkScore);
   }
   
-  /** Starts a conversation with the provided client. */
+  /** Starts a conversation with the provided client, on this thread,
+   * see 'Session'. Each line is handled as soon as it arrives; floods
+   * are limited per client, see 'Session'. */
   public void communicateWith (Client client) throws IOException {
-    while (true) {
-      try {
-        Thread.sleep(5);
-      }
-      catch (InterruptedException exc) {}
-      Scanner sc = new Scanner(client.receive());
+    Conversation conversation = conversationWith(client);
+    while (conversation.onLine(client.receive())) {
+      client.awaitResume();
+    }
+  }
+  
+  /** Returns a new conversation with the provided client, see
+   * 'Session'. */
+  public Conversation conversationWith (Client client) {
+    return new Session(client);
+  }
+  
+  /** A client on hold until the history of its id has at least <need>
+   * views, to be answered with the changes since turn <base> (or the
+   * whole view, see 'Session.answer'). */
+  protected static class Waiter {
+    final Session session;
+    final int need, base;
+    
+    Waiter (Session session0, int need0, int base0) {
+      session = session0;
+      need = need0;
+      base = base0;
+    }
+  }
+  
+  /** The conversation with a client that has left the lobby.
+   * 
+   * After 'intro', a client may send "delta [k]" to switch to the delta
+   * mode, which the server confirms with the line "delta <k>". In this
+   * mode the answers to 'get' and 'next' are not whole views but the
+   * changes since the last turn the client acknowledged, see
+   * 'ViewDelta'; "get t" acknowledges turn t, and 'next' the turn last
+   * sent. At least every k turns (by default 'Constants.keyframeTurns')
+   * the answer is a keyframe instead, the line "full" and the whole
+   * view, so a client that lost track gets back in sync.
+   * 
+   * A 'get' or 'next' that cannot be answered yet puts the client on
+   * hold (see 'Client.hold') until 'fanOut' has the turn, so no thread
+   * waits for it.
+   * 
+   * A player sends "commit t" once its commands for turn t (those sent
+   * after getting the view of turn t) are final. Commands sent after it
+   * are queued for the next turn. A commit for any turn but the one
+   * being played, such as one that arrives after its turn ended, is
+   * ignored. If the match advances early (see the constructor), the
+   * turn ends as soon as both players have committed; otherwise
+   * "commit" changes nothing but where later commands go.
+   * 
+   * A player may send 'Constants.commandsPerTurn' 'commands' messages
+   * per turn, further ones are dropped (see 'submit'). The time from the
+   * arrival of a 'commands' message until it is queued is recorded as
+   * 'StageTimes.Stage.INTAKE'. */
+  protected class Session implements Conversation {
+    protected Client client;
+    protected boolean delta; // are we in delta mode?
+    protected int keyframeTurns;
+    protected int sent; // last turn sent in delta mode
+    protected int keyframe; // last turn sent as a keyframe
+    protected long dropped; // 'commands' messages over the limit
+    
+    Session (Client client0) {
+      client = client0;
+      dropped = 0;
+      delta = false;
+      keyframeTurns = Constants.keyframeTurns;
+      sent = -1;
+      keyframe = -1;
+    }
+    
+    @Override
+    public boolean onLine (String line) {
+      Scanner sc = new Scanner(line);
       String cmdType;
       try {
         cmdType = sc.next();
       }
       catch (NoSuchElementException exc) {
         logger.info(String.format("got empty message from client %d (id = %d)", client.hashCode(), client.id));
-        continue;
+        return true;
       }
       if (cmdType.equals("commands")) {
         if (client.id != Constants.attacker && client.id != Constants.defender) { // only real players may act!
-          continue;
+          return true;
         }
         String desc;
         try {
@@ -227,13 +706,34 @@ public class GameServer implements Runnable {
         }
         catch (NoSuchElementException exc) {
           logger.info(String.format("got 'commands' but there is nothing further to clarify what command; from client %d (id = %d)", client.hashCode(), client.id));
-          continue;
+          return true;
+        }
+        if (!submit(client.id, desc)) {
+          dropped++;
+          if (dropped == 1 || dropped % 100 == 0) {
+            logger.info(String.format("client %d (id = %d) sends commands too fast, dropped %d messages so far", client.hashCode(), client.id, dropped));
+          }
+          return true;
+        }
+        times.record(StageTimes.Stage.INTAKE, client.getArrival());
+      }
+      else
+      if (cmdType.equals("commit")) {
+        int t;
+        try {
+          t = sc.nextInt();
+        }
+        catch (NoSuchElementException exc) {
+          logger.info(String.format("got 'commit' but then expected a turn number, got something else; from client %d (id = %d)", client.hashCode(), client.id));
+          return true;
+        }
+        if (client.id == Constants.attacker || client.id == Constants.defender) {
+          commit(client.id, t);
         }
-        commandsOf(client.id).add(desc);
       }
       else
       if (cmdType.equals("intro")) {
-        client.send(getIntro(client.id));
+        sendIntro(client);
       }
       else
       if (cmdType.equals("get")) {
@@ -243,19 +743,73 @@ public class GameServer implements Runnable {
         }
         catch (NoSuchElementException exc) {
           logger.info(String.format("got 'get' but then expected a turn number, got something else; from client %d (id = %d)", client.hashCode(), client.id));
-          continue;
+          return true;
         }
-        String data = getAtTime(client.id, t);
-        client.send(data);
+        request(t + 1, t);
       }
       else
       if (cmdType.equals("next")) {
-        client.send(getNext(client.id));
+        historyLock.lock();
+        try {
+          request(sourceOf(client.id).size() + 1, sent);
+        }
+        finally {
+          historyLock.unlock();
+        }
+      }
+      else
+      if (cmdType.equals("delta")) {
+        if (sc.hasNextInt()) {
+          keyframeTurns = Math.max(1, sc.nextInt());
+        }
+        delta = true;
+        sent = -1;
+        keyframe = -1;
+        client.send(String.format("delta %d", keyframeTurns));
       }
       else
       if (cmdType.equals("finish")) {
-        break;
+        return false;
+      }
+      return true;
+    }
+    
+    /** Answers with the last turn once the history has at least <need>
+     * views, as changes since <base> in delta mode. */
+    protected void request (int need, int base) {
+      List<byte[]> source = sourceOf(client.id);
+      int turn;
+      historyLock.lock();
+      try {
+        if (source.size() < need) {
+          client.hold();
+          waitersOf(client.id).add(new Waiter(this, need, base));
+          return;
+        }
+        turn = source.size() - 1;
+      }
+      finally {
+        historyLock.unlock();
+      }
+      client.send(answer(base, turn));
+    }
+    
+    /** Returns the answer to a 'get' or 'next' with turn <turn>: the view,
+     * or in delta mode the changes since <base> or a keyframe. */
+    protected byte[] answer (int base, int turn) {
+      if (!delta) {
+        historyLock.lock();
+        try {
+          return sourceOf(client.id).get(turn);
+        }
+        finally {
+          historyLock.unlock();
+        }
       }
+      boolean full = (keyframe < 0 || turn - keyframe >= keyframeTurns);
+      sent = turn;
+      keyframe = (full ? turn : keyframe);
+      return deltaView(client.id, base, turn, full);
     }
   }
 }
@@ -0,0 +1,120 @@
+package server.game;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.logging.*;
+import server.game.logic.Game;
+
+
+/** Plays a game without clients, sockets or wall-clock turns. Each turn
+ * both controllers are asked for their commands, these are passed
+ * directly to 'Game.command', and then 'Game.advance' is called, so a
+ * match runs as fast as the controllers and the simulation allow. */
+public class HeadlessMatch implements Runnable {
+  protected static Logger logger = Logger.getLogger("Game");
+  
+  protected Game game;
+  protected Controller atk, def;
+  
+  // observer stuff
+  protected boolean record;
+  protected List<String> obsHistory;
+  
+  /** Constructs a match of controllers <def0> (defender) and <atk0>
+   * (attacker) in the provided, freshly constructed game. If <record0>
+   * is set, observer views of all turns are kept for 'getHistory'. */
+  public HeadlessMatch (Game game0, Controller def0, Controller atk0, boolean record0) {
+    game = game0;
+    def = def0;
+    atk = atk0;
+    record = record0;
+    obsHistory = new ArrayList<String>();
+  }
+  
+  /** Returns the controller of player <id>. */
+  Controller controllerOf (int id) {
+    switch (id) {
+      case Constants.attacker: return atk;
+      case Constants.defender: return def;
+    }
+    return null;
+  }
+  
+  /** Returns true if <controller> does anything with the intro, that is
+   * if it overrides 'Controller.intro'. The intro lists what every cell
+   * of the map sees, which is not worth building for nothing. */
+  static boolean wantsIntro (Controller controller) {
+    try {
+      return controller.getClass().getMethod("intro", String.class).getDeclaringClass() != Controller.class;
+    }
+    catch (NoSuchMethodException exc) {
+      return true;
+    }
+  }
+  
+  @Override
+  public void run () {
+    String mapInfo = null;
+    String[] views = game.getViews();
+    for (int id = 1; id >= 0; id--) {
+      if (wantsIntro(controllerOf(id))) {
+        if (mapInfo == null) {
+          mapInfo = game.getMapString();
+        }
+        controllerOf(id).intro(String.format("%d\n%s\n%s", id, mapInfo, views[id + 1]));
+      }
+    }
+    if (record) {
+      obsHistory.add(views[Constants.observer + 1]);
+    }
+    
+    while (!game.isGameOver()) {
+      for (int id = 1; id >= 0; id--) {
+        String cmds = controllerOf(id).play(views[id + 1]);
+        if (cmds != null) {
+          game.command(id, cmds);
+        }
+      }
+      game.advance();
+      views = game.getViews();
+      if (record) {
+        obsHistory.add(views[Constants.observer + 1]);
+      }
+    }
+    logger.info(String.format("headless match finished after turn %d", game.getTurn()));
+  }
+  
+  /** Returns the underlying game. */
+  public Game getGame () {
+    return game;
+  }
+  
+  /** Returns the score of the defender and then of the attacker, like
+   * 'GameServer.getScore'. */
+  public String getScore () {
+    return GameServer.scoreOf(game);
+  }
+  
+  /** Returns the recorded history from the observer's point of view, in
+   * the same format as 'GameServer.getHistory(-1)'. */
+  public String getHistory () {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, false, StandardCharsets.US_ASCII);
+    printHistory(out);
+    out.flush();
+    return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+  }
+  
+  /** Prints 'getHistory' to <out>, the map a band of rows at a time (see
+   * 'Game.forMapString'). */
+  public void printHistory (PrintStream out) {
+    out.print(Constants.observer);
+    out.print("\n");
+    game.forMapString(piece -> {
+      out.print(piece);
+      out.print("\n");
+    });
+    out.print(String.join("\n", obsHistory));
+  }
+}
@@ -0,0 +1,86 @@
+package server.game;
+
+import java.util.concurrent.atomic.*;
+
+
+/** A histogram of durations, in buckets of powers of two microseconds:
+ * bucket 0 holds durations under 1 us, bucket k those from 2^(k-1) us
+ * up to 2^k us, and the last bucket everything longer. Durations may
+ * be recorded from any thread. */
+public class Histogram {
+  public static final int BUCKETS = 32;
+  
+  protected final AtomicLongArray buckets;
+  protected final AtomicLong count, total, max; // nanoseconds
+  
+  public Histogram () {
+    buckets = new AtomicLongArray(BUCKETS);
+    count = new AtomicLong();
+    total = new AtomicLong();
+    max = new AtomicLong();
+  }
+  
+  /** Records a duration of <nanos> nanoseconds (negative ones as 0). */
+  public void record (long nanos) {
+    nanos = Math.max(0, nanos);
+    long micros = nanos / 1000;
+    int k = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    buckets.incrementAndGet(k);
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    max.accumulateAndGet(nanos, Math::max);
+  }
+  
+  /** Returns the number of durations recorded. */
+  public long getCount () {
+    return count.get();
+  }
+  
+  /** Returns the mean duration, in microseconds. */
+  public double getMeanMicros () {
+    long n = count.get();
+    return (n == 0 ? 0 : total.get() / 1e3 / n);
+  }
+  
+  /** Returns the longest duration, in microseconds. */
+  public double getMaxMicros () {
+    return max.get() / 1e3;
+  }
+  
+  /** Returns an upper bound of the <q>-quantile (0 < q <= 1) of the
+   * durations, in microseconds: the upper end of its bucket, or the
+   * longest duration if that is less. */
+  public double getQuantileMicros (double q) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long)Math.ceil(q * n);
+    long seen = 0;
+    for (int k = 0; k < BUCKETS - 1; k++) {
+      seen += buckets.get(k);
+      if (seen >= rank) {
+        return Math.min(1L << k, getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+  
+  /** Returns the number of durations in bucket <k>. */
+  public long getBucket (int k) {
+    return buckets.get(k);
+  }
+  
+  @Override
+  public String toString () {
+    StringBuilder bui = new StringBuilder();
+    bui.append(String.format("n %d mean %.0f us p50 %.0f us p99 %.0f us max %.0f us |", getCount(), getMeanMicros(), getQuantileMicros(0.5), getQuantileMicros(0.99), getMaxMicros()));
+    for (int k = 0; k < BUCKETS; k++) {
+      long n = buckets.get(k);
+      if (n > 0) {
+        bui.append(String.format(" <%s us: %d", k < BUCKETS - 1 ? Long.toString(1L << k) : "inf", n));
+      }
+    }
+    return bui.toString();
+  }
+}
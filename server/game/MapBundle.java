@@ -0,0 +1,295 @@
+package server.game;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.logging.*;
+import server.game.map.*;
+import server.game.units.*;
+
+
+/** A map compiled into a binary file, together with its precomputed
+ * visibility graph, so that the server can start without parsing the
+ * map and building the graph. The bundle is memory-mapped; the masks
+ * of the visibility graph are read from the mapping directly. Each of
+ * the two mask arrays is mapped on its own, so the bundle as a whole
+ * may be larger than a single mapping (2 GB).
+ *
+ * Layout (big endian):
+ *   int magic ("PBMB"), int version, int rows, int cols, int range,
+ *   int words (longs per mask), int number of units,
+ *   64 bytes: hex SHA-256 of the text map the bundle was compiled from,
+ *   rows*cols bytes of terrain types, rows*cols bytes of elevations,
+ *   for each unit: int owner, int type, int row, int col,
+ *   padding to a multiple of 8 bytes,
+ *   rows*cols*words longs of from-masks, rows*cols*words longs of to-masks.
+ *
+ * Compile a map with
+ *   java -cp server.jar server.game.MapBundle map.txt [map.txt.bundle] */
+public class MapBundle {
+  protected static Logger logger = Logger.getLogger("Game");
+  
+  public static final int MAGIC = 0x50424D42; // "PBMB"
+  public static final int VERSION = 1;
+  public static final String SUFFIX = ".bundle";
+  protected static final int HEADER = 7 * 4 + 64;
+  protected static final int CHUNK = 1 << 16; // bytes of masks written at once
+  
+  protected String hash; // of the text map
+  protected Terrain terrain;
+  protected Visibility visibility;
+  protected List<InitialUnit> initial;
+  
+  protected MapBundle (String hash0, Terrain terrain0, Visibility visibility0, List<InitialUnit> initial0) {
+    hash = hash0;
+    terrain = terrain0;
+    visibility = visibility0;
+    initial = initial0;
+  }
+  
+  public String getHash () {
+    return hash;
+  }
+  public Terrain getTerrain () {
+    return terrain;
+  }
+  public Visibility getVisibility () {
+    return visibility;
+  }
+  public List<InitialUnit> getInitial () {
+    return initial;
+  }
+  
+  /** Compiles the text map in <textMap> into a bundle in <bundle>. */
+  public static void compile (Path textMap, Path bundle) throws IOException {
+    String content = new String(Files.readAllBytes(textMap), StandardCharsets.UTF_8);
+    Terrain t;
+    List<InitialUnit> units;
+    try {
+      Scanner sc = new Scanner(content);
+      t = new Terrain(sc);
+      units = InitialUnit.getStartingPositions(sc);
+    }
+    catch (NoSuchElementException exc) {
+      throw invalid(textMap, exc);
+    }
+    Visibility v = new LinearVisibility(t, Constants.sight);
+    int words = MappedVisibility.wordsFor(Constants.sight);
+    int cells = t.r * t.c;
+    
+    int masks = align(HEADER + 2 * cells + 16 * units.size());
+    long size = masks + 2L * 8 * cells * words;
+    ByteBuffer buf = ByteBuffer.allocate(masks);
+    buf.order(ByteOrder.BIG_ENDIAN);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(t.r);
+    buf.putInt(t.c);
+    buf.putInt(Constants.sight);
+    buf.putInt(words);
+    buf.putInt(units.size());
+    buf.put(MapRegistry.hashOf(content).getBytes(StandardCharsets.US_ASCII));
+    for (int i = 0; i < t.r; i++) {
+      for (int j = 0; j < t.c; j++) {
+        buf.put((byte)t.terrainAt(i, j).ordinal());
+      }
+    }
+    for (int i = 0; i < t.r; i++) {
+      for (int j = 0; j < t.c; j++) {
+        buf.put((byte)t.heightAt(i, j));
+      }
+    }
+    for (InitialUnit unit : units) {
+      buf.putInt(unit.owner);
+      buf.putInt(unit.type.ordinal());
+      buf.putInt(unit.pos.r);
+      buf.putInt(unit.pos.c);
+    }
+    buf.position(masks);
+    
+    try (FileChannel ch = FileChannel.open(bundle, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      buf.flip();
+      write(ch, buf);
+      
+      // from-masks, then to-masks, rebuilt bit by bit from the graph and
+      // streamed out a chunk at a time
+      buf = ByteBuffer.allocate(CHUNK);
+      buf.order(ByteOrder.BIG_ENDIAN);
+      for (int pass = 0; pass < 2; pass++) {
+        long[] mask = new long[words];
+        for (int i = 0; i < t.r; i++) {
+          for (int j = 0; j < t.c; j++) {
+            Arrays.fill(mask, 0);
+            int k = (pass == 0 ? v.nextVisible(i, j, 0) : v.nextSeer(i, j, 0));
+            while (k >= 0) {
+              mask[k >>> 6] |= 1L << k;
+              k = (pass == 0 ? v.nextVisible(i, j, k + 1) : v.nextSeer(i, j, k + 1));
+            }
+            for (long w : mask) {
+              if (!buf.hasRemaining()) {
+                buf.flip();
+                write(ch, buf);
+                buf.clear();
+              }
+              buf.putLong(w);
+            }
+          }
+        }
+      }
+      buf.flip();
+      write(ch, buf);
+      if (ch.position() != size) {
+        throw new IOException(String.format("wrote %d bytes to %s, expected %d", ch.position(), bundle, size));
+      }
+    }
+  }
+  
+  /** Writes all of <buf> to <ch>. */
+  protected static void write (FileChannel ch, ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      ch.write(buf);
+    }
+  }
+  
+  /** Rounds <n> up to a multiple of 8. */
+  protected static int align (int n) {
+    return (n + 7) & ~7;
+  }
+  
+  /** Returns true if the file <path> starts like a bundle. */
+  public static boolean isBundle (Path path) throws IOException {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      return in.readInt() == MAGIC;
+    }
+    catch (EOFException exc) {
+      return false;
+    }
+  }
+  
+  /** Memory-maps the bundle in <path>. Throws an IOException if it is
+   * not a bundle, has a different version, or was compiled for another
+   * sight range than 'Constants.sight'. */
+  public static MapBundle open (Path path) throws IOException {
+    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+      return open(path, ch);
+    }
+  }
+  
+  /** Maps the bundle in <path>, opened as <ch>, see above. */
+  protected static MapBundle open (Path path, FileChannel ch) throws IOException {
+    long fileSize = ch.size();
+    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, Integer.MAX_VALUE));
+    buf.order(ByteOrder.BIG_ENDIAN);
+    try {
+      if (buf.getInt() != MAGIC) {
+        throw new IOException(String.format("%s is not a map bundle", path));
+      }
+      int version = buf.getInt();
+      if (version != VERSION) {
+        throw new IOException(String.format("%s has version %d, expected %d", path, version, VERSION));
+      }
+      int rows = buf.getInt();
+      int cols = buf.getInt();
+      int range = buf.getInt();
+      int words = buf.getInt();
+      int n = buf.getInt();
+      if (range != Constants.sight || words != MappedVisibility.wordsFor(range)) {
+        throw new IOException(String.format("%s was compiled for sight %d, expected %d", path, range, Constants.sight));
+      }
+      byte[] hex = new byte[64];
+      buf.get(hex);
+      
+      Terrain t = new Terrain(rows, cols, buf);
+      List<InitialUnit> units = new ArrayList<InitialUnit>();
+      Unit.Type[] types = Unit.Type.values();
+      for (int i = 0; i < n; i++) {
+        int owner = buf.getInt();
+        Unit.Type type = types[buf.getInt()];
+        int r = buf.getInt();
+        int c = buf.getInt();
+        units.add(new InitialUnit(owner, type, new Position(r, c)));
+      }
+      
+      long longs = (long)rows * cols * words; // per mask array
+      long masks = align(buf.position());
+      if (longs > Integer.MAX_VALUE / 8) {
+        throw new IOException(String.format("%s has masks of %d bytes, more than can be mapped at once", path, 8 * longs));
+      }
+      if (masks + 2 * 8 * longs > fileSize) {
+        throw new IOException(String.format("%s is truncated", path));
+      }
+      LongBuffer from = map(ch, masks, (int)longs);
+      LongBuffer to = map(ch, masks + 8 * longs, (int)longs);
+      return new MapBundle(new String(hex, StandardCharsets.US_ASCII), t.freeze(), new MappedVisibility(t, range, from, to), Collections.unmodifiableList(units));
+    }
+    catch (BufferUnderflowException | IndexOutOfBoundsException exc) {
+      throw new IOException(String.format("%s is truncated", path), exc);
+    }
+    catch (IllegalArgumentException exc) { // an elevation out of range
+      throw invalid(path, exc);
+    }
+  }
+  
+  /** Returns the exception to throw for the map in <path> that <exc>
+   * was thrown for while parsing it. */
+  protected static IOException invalid (Path path, RuntimeException exc) {
+    return new IOException(String.format("%s is not a valid map [%s]", path, exc.getMessage()), exc);
+  }
+  
+  /** Maps <count> longs of <ch> starting at byte <offset>. */
+  protected static LongBuffer map (FileChannel ch, long offset, int count) throws IOException {
+    return ch.map(FileChannel.MapMode.READ_ONLY, offset, 8L * count).order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+  }
+  
+  /** Loads the map in <path>, which may be a bundle or a text map. For
+   * a text map, its bundle (<path> + ".bundle") is used if there is one
+   * and it was compiled from the current content of the map; otherwise
+   * the text map is parsed and the visibility graph built as usual,
+   * lazily for a large map (see 'Visibility.of'). */
+  public static MapBundle load (Path path) throws IOException {
+    if (isBundle(path)) {
+      return open(path);
+    }
+    String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    String hash = MapRegistry.hashOf(content);
+    Path bundle = Paths.get(path.toString() + SUFFIX);
+    if (Files.exists(bundle)) {
+      try {
+        MapBundle res = open(bundle);
+        if (res.hash.equals(hash)) {
+          return res;
+        }
+        logger.info(String.format("bundle %s is out of date, parsing %s", bundle, path));
+      }
+      catch (IOException exc) {
+        logger.info(String.format("cannot use bundle %s, parsing %s [%s]", bundle, path, exc.getMessage()));
+      }
+    }
+    Terrain t;
+    List<InitialUnit> units;
+    try {
+      Scanner sc = new Scanner(content);
+      t = new Terrain(sc);
+      units = InitialUnit.getStartingPositions(sc);
+    }
+    catch (NoSuchElementException exc) {
+      throw invalid(path, exc);
+    }
+    return new MapBundle(hash, t, Visibility.of(t, Constants.sight), units);
+  }
+  
+  /** Compiles a text map into a bundle. */
+  public static void main (String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("usage: MapBundle <map> [<bundle>]");
+      System.exit(1);
+    }
+    Path map = Paths.get(args[0]);
+    Path bundle = Paths.get(args.length > 1 ? args[1] : args[0] + SUFFIX);
+    compile(map, bundle);
+    logger.info(String.format("compiled %s into %s", map, bundle));
+  }
+}
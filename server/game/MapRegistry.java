@@ -0,0 +1,163 @@
+package server.game;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.logging.*;
+import server.game.map.*;
+import server.game.units.InitialUnit;
+
+
+/** Shares parsed maps between games. A map is identified by a hash of
+ * the content of its file, and is parsed (and its visibility graph
+ * built) only once, no matter how many games play it at the same time.
+ * The terrain and the visibility graph are frozen, so concurrent games
+ * can only read them.
+ *
+ * Users 'acquire' a map before the game and 'release' it afterwards.
+ * A map that nobody uses is kept among the <maxIdle> most recently
+ * released maps, so that consecutive rounds on the same map do not
+ * parse it again; older unused maps are evicted. */
+public class MapRegistry {
+  protected static Logger logger = Logger.getLogger("Game");
+  
+  protected static final MapRegistry shared = new MapRegistry(4);
+  
+  /** Returns the process-wide registry. */
+  public static MapRegistry getShared () {
+    return shared;
+  }
+  
+  /** A parsed map: terrain, its visibility graph and starting units. */
+  public static class Entry {
+    public final String key;
+    protected final String content;
+    protected int refs;
+    protected Terrain terrain;
+    protected Visibility visibility;
+    protected List<InitialUnit> initial;
+    
+    Entry (String key0, String content0) {
+      key = key0;
+      content = content0;
+      refs = 0;
+    }
+    
+    /** Parses the map, if that was not done yet. */
+    synchronized void load () {
+      if (terrain != null) {
+        return;
+      }
+      Scanner sc = new Scanner(content);
+      Terrain t = new Terrain(sc);
+      List<InitialUnit> units = InitialUnit.getStartingPositions(sc);
+      Visibility v = Visibility.of(t, Constants.sight).freeze();
+      initial = Collections.unmodifiableList(units);
+      visibility = v;
+      terrain = t.freeze();
+    }
+    
+    public synchronized Terrain getTerrain () {
+      return terrain;
+    }
+    public synchronized Visibility getVisibility () {
+      return visibility;
+    }
+    public synchronized List<InitialUnit> getInitial () {
+      return initial;
+    }
+  }
+  
+  protected int maxIdle;
+  protected Map<String, Entry> entries; // all entries, by key
+  protected LinkedHashSet<String> idle; // unused entries, least recently released first
+  
+  /** Constructs a registry that keeps at most <maxIdle0> unused maps. */
+  public MapRegistry (int maxIdle0) {
+    maxIdle = maxIdle0;
+    entries = new HashMap<String, Entry>();
+    idle = new LinkedHashSet<String>();
+  }
+  
+  /** Returns the hex SHA-256 hash of <content>. */
+  static String hashOf (String content) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(content.getBytes(StandardCharsets.UTF_8));
+      StringBuilder bui = new StringBuilder();
+      for (byte b : digest) {
+        bui.append(String.format("%02x", b));
+      }
+      return bui.toString();
+    }
+    catch (NoSuchAlgorithmException exc) {
+      throw new IllegalStateException("SHA-256 is not available", exc);
+    }
+  }
+  
+  /** Returns the map described by <content> (the content of a map
+   * file), parsing it if needed. Must be paired with 'release'. */
+  public Entry acquire (String content) {
+    String key = hashOf(content);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key, content);
+        entries.put(key, entry);
+      }
+      entry.refs += 1;
+      idle.remove(key);
+    }
+    // parse outside of the registry lock, so other maps are not blocked
+    try {
+      entry.load();
+    }
+    catch (RuntimeException exc) {
+      synchronized (this) {
+        entry.refs -= 1;
+        if (entry.refs == 0) {
+          entries.remove(key);
+        }
+      }
+      throw exc;
+    }
+    return entry;
+  }
+  
+  /** Returns the map stored in file <path>, see 'acquire(String)'. */
+  public Entry acquire (Path path) throws IOException {
+    return acquire(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+  }
+  
+  /** Tells the registry that one user of <entry> is done with it. An
+   * entry the registry no longer holds is ignored. Throws an
+   * IllegalStateException if nobody holds <entry>, as after releasing
+   * it twice. */
+  public synchronized void release (Entry entry) {
+    if (entries.get(entry.key) != entry) {
+      return;
+    }
+    if (entry.refs <= 0) {
+      throw new IllegalStateException(String.format("map %s is released more often than acquired", entry.key));
+    }
+    entry.refs -= 1;
+    if (entry.refs > 0) {
+      return;
+    }
+    idle.add(entry.key);
+    while (idle.size() > maxIdle) {
+      String oldest = idle.iterator().next();
+      idle.remove(oldest);
+      entries.remove(oldest);
+      logger.info(String.format("evicted map %s from the registry", oldest));
+    }
+  }
+  
+  /** Returns the number of maps held by the registry. */
+  public synchronized int size () {
+    return entries.size();
+  }
+}
@@ -0,0 +1,154 @@
+package server.game;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import server.game.logic.Game;
+import server.game.map.Terrain;
+import server.game.map.Visibility;
+import server.game.units.InitialUnit;
+
+
+/** Runs many headless matches concurrently inside one JVM, on a bounded
+ * pool of worker threads. Saves the JVM startup, class loading and JIT
+ * warm-up that a fresh server process pays for every match. Games do
+ * not share any mutable state, so they can run side by side; terrains
+ * are only read, so one terrain can be shared by many matches. So is
+ * its visibility graph: it is built once, by the first match on the
+ * terrain, frozen, and kept as long as matches on that terrain are
+ * queued or running. */
+public class MatchExecutor {
+  protected static Logger logger = Logger.getLogger("Game");
+  
+  /** The visibility graph of a terrain, built by the first match that
+   * needs it, and the number of matches on the terrain not done yet. */
+  protected static class Graph {
+    final FutureTask<Visibility> task;
+    int refs;
+    
+    Graph (Terrain terrain) {
+      task = new FutureTask<Visibility>(() -> Visibility.of(terrain, Constants.sight).freeze());
+      refs = 0;
+    }
+  }
+  
+  protected ExecutorService pool;
+  protected Map<Terrain, Graph> graphs; // by identity, guarded by 'this'
+  
+  /** Constructs an executor that runs at most <threads> matches at a
+   * time. Further matches wait in a queue. */
+  public MatchExecutor (int threads) {
+    AtomicInteger counter = new AtomicInteger(0);
+    pool = Executors.newFixedThreadPool(threads, (Runnable r) -> {
+      Thread worker = new Thread(r, String.format("match-%d", counter.getAndIncrement()));
+      worker.setDaemon(true);
+      return worker;
+    });
+    graphs = new IdentityHashMap<Terrain, Graph>();
+  }
+  
+  /** Queues the match created by <factory>. The match is both created
+   * and played on a worker thread. The result is the score of the
+   * defender and then of the attacker, as in 'GameServer.getScore'. */
+  public Future<String> submit (Callable<HeadlessMatch> factory) {
+    return pool.submit(() -> {
+      HeadlessMatch match = factory.call();
+      match.run();
+      return match.getScore();
+    });
+  }
+  
+  /** Queues a match of controllers <def> and <atk> on the given terrain
+   * and starting units, with random seed <seed>. The terrain must not
+   * change while matches on it are queued or running, as they share its
+   * visibility graph. */
+  public Future<String> submit (Terrain terrain, List<InitialUnit> initial, long seed, Controller def, Controller atk) {
+    Graph graph = acquire(terrain);
+    try {
+      return pool.submit(() -> {
+        try {
+          graph.task.run(); // builds the graph, unless some match did already
+          Game game = new Game(new Random(seed), terrain, graph.task.get(), initial);
+          HeadlessMatch match = new HeadlessMatch(game, def, atk, false);
+          match.run();
+          return match.getScore();
+        }
+        finally {
+          release(terrain);
+        }
+      });
+    }
+    catch (RejectedExecutionException exc) {
+      release(terrain);
+      throw exc;
+    }
+  }
+  
+  /** Returns the graph of <terrain>, counting one more match on it. */
+  protected synchronized Graph acquire (Terrain terrain) {
+    Graph graph = graphs.get(terrain);
+    if (graph == null) {
+      graph = new Graph(terrain);
+      graphs.put(terrain, graph);
+    }
+    graph.refs += 1;
+    return graph;
+  }
+  
+  /** Counts one match on <terrain> less, dropping its graph after the
+   * last one. */
+  protected synchronized void release (Terrain terrain) {
+    Graph graph = graphs.get(terrain);
+    graph.refs -= 1;
+    if (graph.refs == 0) {
+      graphs.remove(terrain);
+    }
+  }
+  
+  /** Queues a match of controllers <def> and <atk> on the map stored in
+   * file <mapFile>, with random seed <seed>. The parsed map is taken
+   * from the shared 'MapRegistry', so concurrent matches on the same
+   * map share its terrain and visibility graph. */
+  public Future<String> submit (Path mapFile, long seed, Controller def, Controller atk) {
+    return pool.submit(() -> {
+      MapRegistry registry = MapRegistry.getShared();
+      MapRegistry.Entry map = registry.acquire(mapFile);
+      try {
+        Game game = new Game(new Random(seed), map.getTerrain(), map.getVisibility(), map.getInitial());
+        HeadlessMatch match = new HeadlessMatch(game, def, atk, false);
+        match.run();
+        return match.getScore();
+      }
+      finally {
+        registry.release(map);
+      }
+    });
+  }
+  
+  /** Plays all matches created by <factories> and returns their scores,
+   * in the same order. */
+  public List<String> runAll (List<Callable<HeadlessMatch>> factories) throws InterruptedException, ExecutionException {
+    List<Future<String>> futures = new ArrayList<Future<String>>();
+    for (Callable<HeadlessMatch> factory : factories) {
+      futures.add(submit(factory));
+    }
+    List<String> res = new ArrayList<String>();
+    for (Future<String> future : futures) {
+      res.add(future.get());
+    }
+    return res;
+  }
+  
+  /** Stops accepting matches; already queued ones are still played. */
+  public void shutdown () {
+    pool.shutdown();
+  }
+  
+  /** Waits until all queued matches are played, after 'shutdown'. */
+  public boolean awaitTermination (long timeout, TimeUnit unit) throws InterruptedException {
+    return pool.awaitTermination(timeout, unit);
+  }
+}
@@ -0,0 +1,68 @@
+package server.game;
+
+import java.util.concurrent.atomic.*;
+
+
+/** Latencies of the stages of a turn (see 'GameServer.run'): how many
+ * times each stage ran, and the total and longest time it took. Stages
+ * may be timed from different threads. The intake of commands is timed
+ * per message rather than per turn. */
+public class StageTimes {
+  public enum Stage {
+    INTAKE, // from the arrival of a 'commands' message until it is queued
+    DRAIN, // taking the commands out of the queues and giving them to the game
+    SIMULATE, // 'Game.advance'
+    RENDER, // encoding the views
+    FANOUT // appending the views to the histories and waking up the clients
+  }
+  
+  protected final AtomicLongArray count, total, max; // indexed by ordinal, nanoseconds
+  
+  public StageTimes () {
+    int n = Stage.values().length;
+    count = new AtomicLongArray(n);
+    total = new AtomicLongArray(n);
+    max = new AtomicLongArray(n);
+  }
+  
+  /** Records that <stage> ran from <start> until now (both as given by
+   * 'System.nanoTime'). Returns now. */
+  public long record (Stage stage, long start) {
+    long now = System.nanoTime();
+    long nanos = now - start;
+    int i = stage.ordinal();
+    count.incrementAndGet(i);
+    total.addAndGet(i, nanos);
+    max.accumulateAndGet(i, nanos, Math::max);
+    return now;
+  }
+  
+  /** Returns the number of times <stage> ran. */
+  public long getCount (Stage stage) {
+    return count.get(stage.ordinal());
+  }
+  
+  /** Returns the mean latency of <stage>, in microseconds. */
+  public double getMeanMicros (Stage stage) {
+    int i = stage.ordinal();
+    long n = count.get(i);
+    return (n == 0 ? 0 : total.get(i) / 1e3 / n);
+  }
+  
+  /** Returns the longest latency of <stage>, in microseconds. */
+  public double getMaxMicros (Stage stage) {
+    return max.get(stage.ordinal()) / 1e3;
+  }
+  
+  @Override
+  public String toString () {
+    StringBuilder bui = new StringBuilder();
+    for (Stage stage : Stage.values()) {
+      if (bui.length() > 0) {
+        bui.append(", ");
+      }
+      bui.append(String.format("%s mean %.0f us max %.0f us", stage.name().toLowerCase(), getMeanMicros(stage), getMaxMicros(stage)));
+    }
+    return bui.toString();
+  }
+}
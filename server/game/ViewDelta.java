@@ -0,0 +1,122 @@
+package server.game;
+
+import java.io.*;
+import java.util.*;
+
+
+/** The difference between two views of the same player, as sent in the
+ * delta mode of the protocol (see 'GameServer.Session'). Views
+ * are the ASCII texts of 'Game.getViews': a line "turn score state", a
+ * line with the number of units, and one line per unit, "row col id
+ * owner type health stamina". A delta from view <base> to view <view>
+ * is
+ *   delta <turn of base>
+ *   <turn> <score> <state>        (header of <view>)
+ *   <n>
+ *   n lines of units that appeared or whose line changed (moved, or
+ *   health or stamina changed), exactly as in <view>
+ *   <m>
+ *   m lines with the ids of units of <base> that are not in <view>
+ * The units of <view> are then those of <base>, minus the removed ones,
+ * with the changed lines replacing the old lines of the same id. */
+public class ViewDelta {
+  /** Returns the index just past the end of the line starting at <pos>,
+   * i.e. after its '\n'. */
+  protected static int lineEnd (byte[] view, int pos) {
+    while (pos < view.length && view[pos] != '\n') {
+      pos++;
+    }
+    return Math.min(pos + 1, view.length);
+  }
+  
+  /** Returns the id of the unit on the line starting at <pos>, which is
+   * the third number on the line. */
+  protected static int idAt (byte[] view, int pos) {
+    for (int spaces = 0; spaces < 2; pos++) {
+      if (view[pos] == ' ') {
+        spaces++;
+      }
+    }
+    int id = 0;
+    boolean negative = (view[pos] == '-');
+    if (negative) {
+      pos++;
+    }
+    for (; view[pos] >= '0' && view[pos] <= '9'; pos++) {
+      id = 10 * id + (view[pos] - '0');
+    }
+    return (negative ? -id : id);
+  }
+  
+  /** Returns the index of the first unit line of <view>, after the two
+   * header lines. */
+  protected static int unitsStart (byte[] view) {
+    return lineEnd(view, lineEnd(view, 0));
+  }
+  
+  /** Returns the delta from view <base>, of turn <baseTurn>, to <view>,
+   * in the format described above. */
+  public static byte[] between (byte[] base, int baseTurn, byte[] view) {
+    // line of each unit in the base: id -> start of the line
+    Map<Integer, Integer> old = new HashMap<Integer, Integer>();
+    for (int pos = unitsStart(base); pos < base.length; pos = lineEnd(base, pos)) {
+      old.put(idAt(base, pos), pos);
+    }
+    
+    ByteArrayOutputStream changed = new ByteArrayOutputStream();
+    int n = 0;
+    for (int pos = unitsStart(view); pos < view.length; ) {
+      int end = lineEnd(view, pos);
+      Integer from = old.remove(idAt(view, pos));
+      if (from == null || !Arrays.equals(view, pos, end, base, from, lineEnd(base, from))) {
+        changed.write(view, pos, end - pos);
+        n++;
+      }
+      pos = end;
+    }
+    List<Integer> removed = new ArrayList<Integer>(old.keySet());
+    Collections.sort(removed);
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream(changed.size() + 32 + 8 * removed.size());
+    StringBuilder bui = new StringBuilder();
+    bui.append("delta ");
+    bui.append(baseTurn);
+    bui.append("\n");
+    writeAscii(out, bui);
+    out.write(view, 0, lineEnd(view, 0));
+    bui.setLength(0);
+    bui.append(n);
+    bui.append("\n");
+    writeAscii(out, bui);
+    out.write(changed.toByteArray(), 0, changed.size());
+    bui.setLength(0);
+    bui.append(removed.size());
+    bui.append("\n");
+    for (int id : removed) {
+      bui.append(id);
+      bui.append("\n");
+    }
+    writeAscii(out, bui);
+    return out.toByteArray();
+  }
+  
+  /** Returns <view> as a keyframe: the line "full" followed by the
+   * whole view. */
+  public static byte[] full (byte[] view) {
+    byte[] res = new byte[5 + view.length];
+    res[0] = 'f';
+    res[1] = 'u';
+    res[2] = 'l';
+    res[3] = 'l';
+    res[4] = '\n';
+    System.arraycopy(view, 0, res, 5, view.length);
+    return res;
+  }
+  
+  /** Appends the characters of <bui>, which must be ASCII, to <out>. */
+  protected static void writeAscii (ByteArrayOutputStream out, StringBuilder bui) {
+    for (int i = 0; i < bui.length(); i++) {
+      out.write(bui.charAt(i));
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package server.game.logic;
+
+import java.util.*;
+
+
+/** Reads whitespace-separated ints from a String, like 'Scanner.nextInt'
+ * but without regular expressions, which is what parsing the commands
+ * of a large army mostly cost. Only plain decimal ints are accepted,
+ * with an optional sign. */
+class CommandReader {
+  protected final String str;
+  protected int pos;
+  
+  CommandReader (String str0) {
+    str = str0;
+    pos = 0;
+  }
+  
+  /** Returns the next int. Throws a NoSuchElementException if there is
+   * no further token, or an InputMismatchException (also a
+   * NoSuchElementException) if the token is not an int. */
+  int nextInt () {
+    int n = str.length();
+    while (pos < n && Character.isWhitespace(str.charAt(pos))) {
+      pos++;
+    }
+    if (pos == n) {
+      throw new NoSuchElementException();
+    }
+    int start = pos;
+    boolean negative = false;
+    char first = str.charAt(pos);
+    if (first == '-' || first == '+') {
+      negative = (first == '-');
+      pos++;
+    }
+    long value = 0;
+    int digits = 0;
+    for (; pos < n && !Character.isWhitespace(str.charAt(pos)); pos++) {
+      int d = Character.digit(str.charAt(pos), 10);
+      if (d < 0 || ++digits > 10) {
+        break;
+      }
+      value = 10 * value + d;
+    }
+    value = (negative ? -value : value);
+    if (digits == 0 || (pos < n && !Character.isWhitespace(str.charAt(pos))) || value != (int)value) {
+      int end = pos;
+      pos = start;
+      throw new InputMismatchException(str.substring(start, end));
+    }
+    return (int)value;
+  }
+}
@@ -0,0 +1,156 @@
+package server.game.logic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import server.game.map.*;
+import server.game.units.*;
+
+
+/** Keeps track of what each player sees. For each player and each cell
+ * of the unit grid (see 'UnitStore') we count the units of the player
+ * that see the cell, and keep a bitmap of the cells with a nonzero
+ * count. The game reports every unit that appears, moves or disappears,
+ * and only the sight of that unit is subtracted or added, so units that
+ * stand still cost nothing. Intersected word by word with the
+ * occupancy bitmap of the store, the bitmap gives the units the player
+ * sees. */
+class FogOfWar {
+  protected UnitStore units;
+  protected Visibility visibility;
+  protected Diamond diamond;
+  protected int[][] refs; // [player][cell] -> number of own units that see it
+  protected long[][] seen; // [player] -> bitmap of cells with refs > 0
+  
+  /** Constructs the fog of <players> players (owners 0 .. players-1)
+   * and adds the sight of all units already in <units0>. */
+  FogOfWar (UnitStore units0, Visibility visibility0, int players) {
+    units = units0;
+    visibility = visibility0;
+    diamond = visibility.getDiamond();
+    refs = new int[players][(units.rows + 1) * units.cols];
+    seen = new long[players][units.occupancyWords()];
+    for (int s = 0; s < units.size(); s++) {
+      added(s);
+    }
+  }
+  
+  /** Adds <delta> to the counts of all cells seen from cell <k> by
+   * units of <owner>. */
+  protected void contribute (int owner, int k, int delta) {
+    contribute(owner, k, delta, 0, Integer.MAX_VALUE);
+  }
+  
+  /** Same, but only for the cells <lo> .. <hi>-1. */
+  protected void contribute (int owner, int k, int delta, int lo, int hi) {
+    if (owner < 0 || owner >= refs.length) {
+      return;
+    }
+    int[] count = refs[owner];
+    long[] bits = seen[owner];
+    int pr = k / units.cols, pc = k % units.cols;
+    for (int j = visibility.nextVisible(pr, pc, 0); j >= 0; j = visibility.nextVisible(pr, pc, j + 1)) {
+      int cell = units.cellOf(pr + diamond.dr(j), pc + diamond.dc(j));
+      if (cell < lo || cell >= hi) {
+        continue;
+      }
+      count[cell] += delta;
+      if (count[cell] == 0) {
+        bits[cell >>> 6] &= ~(1L << cell);
+      }
+      else
+      if (count[cell] == delta && delta > 0) {
+        bits[cell >>> 6] |= 1L << cell;
+      }
+    }
+  }
+  
+  /** To be called after the unit in slot <slot> was added. */
+  void added (int slot) {
+    contribute(units.owner(slot), units.cell(slot), 1);
+  }
+  
+  /** To be called before the unit in slot <slot> is removed. */
+  void removing (int slot) {
+    contribute(units.owner(slot), units.cell(slot), -1);
+  }
+  
+  /** To be called after the unit in slot <slot> moved from cell <from>. */
+  void moved (int slot, int from) {
+    contribute(units.owner(slot), from, -1);
+    contribute(units.owner(slot), units.cell(slot), 1);
+  }
+  
+  /** Same as calling 'moved' for the first <n> units in <slots>, which
+   * moved from the cells in <from>. The counts are sums, so the order
+   * does not matter and neither does the bitmap: a bit is set exactly
+   * when the count goes from 0 to 1 and cleared when it drops to 0. The
+   * cells are split into spans of whole words of the bitmaps, and the
+   * spans are updated concurrently on the common fork-join pool, each
+   * by a task that goes through all the moves but only touches its own
+   * cells. */
+  void movedAll (int[] slots, int[] from, int n) {
+    int words = units.occupancyWords();
+    int grain = Math.max(1, words / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    ForkJoinPool.commonPool().invoke(new Span(slots, from, n, 0, words, grain));
+  }
+  
+  /** Applies moves to the cells of words <lo> .. <hi>-1 of the bitmaps,
+   * splitting into spans of at most <grain> words. */
+  private class Span extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    final int[] slots, from;
+    final int n, lo, hi, grain;
+    
+    Span (int[] slots0, int[] from0, int n0, int lo0, int hi0, int grain0) {
+      slots = slots0;
+      from = from0;
+      n = n0;
+      lo = lo0;
+      hi = hi0;
+      grain = grain0;
+    }
+    
+    @Override
+    protected void compute () {
+      if (hi - lo > grain) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new Span(slots, from, n, lo, mid, grain), new Span(slots, from, n, mid, hi, grain));
+        return;
+      }
+      int cellLo = lo << 6, cellHi = hi << 6;
+      int reach = (diamond.range + 1) * units.cols; // sight never reaches further
+      for (int i = 0; i < n; i++) {
+        int s = slots[i];
+        int k0 = from[i], k1 = units.cell(s);
+        if (Math.max(k0, k1) + reach < cellLo || Math.min(k0, k1) - reach >= cellHi) {
+          continue;
+        }
+        contribute(units.owner(s), k0, -1, cellLo, cellHi);
+        contribute(units.owner(s), k1, 1, cellLo, cellHi);
+      }
+    }
+  }
+  
+  /** Appends to <out>, from index <count>, the slots of the units seen
+   * by <player> that are not owned by it, in the order of their cells.
+   * Returns the new count. */
+  int seenOthers (int player, int[] out, int count) {
+    if (player < 0 || player >= seen.length) {
+      return count;
+    }
+    long[] bits = seen[player];
+    for (int w = 0; w < bits.length; w++) {
+      long word = bits[w] & units.occupancyWord(w);
+      while (word != 0) {
+        int cell = (w << 6) + Long.numberOfTrailingZeros(word);
+        word &= word - 1;
+        int s = units.slotIn(cell);
+        if (units.owner(s) != player) {
+          out[count++] = s;
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -1,6 +1,8 @@
 package server.game.logic;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.logging.*;
 import server.game.map.*;
 import server.game.units.*;
@@ -17,33 +19,75 @@ public class Game {
   protected Terrain terrain;
   protected Visibility visibility;
   
-  protected Map<Position, Unit> unitMap;
+  protected UnitStore units;
   protected int score; // number of attackers that have successfully passed through
   protected int maxScore; // number of all attackers, initially
   protected int turn; // turn number
   protected Stepper stepper; // contains almost all of game logic
+  protected FogOfWar fog; // what the players see
   protected boolean gameOver;
+  protected boolean parallel; // step large armies on the common fork-join pool?
+  
+  /** Turns with fewer units are stepped sequentially, the fork-join
+   * overhead is not worth it. */
+  static final int PARALLEL_UNITS = 1 << 14;
+  /** Roughly how many units one task of a parallel phase handles. */
+  static final int CHUNK_UNITS = 1 << 11;
   
   /** Constructs a Game from the given terrain and list of initialUnits. */
   public Game (Random rng0, Terrain terrain0, List<InitialUnit> initial) {
+    this(rng0, terrain0, Visibility.of(terrain0, Constants.sight), initial);
+  }
+  
+  /** Constructs a Game from the given terrain, its visibility graph and
+   * list of initialUnits. The terrain and the visibility graph are only
+   * read, so they may be shared with other games. */
+  public Game (Random rng0, Terrain terrain0, Visibility visibility0, List<InitialUnit> initial) {
     rng = rng0;
     terrain = terrain0;
-    visibility = new LinearVisibility(terrain, Constants.sight);
-    unitMap = new HashMap<Position, Unit>();
+    visibility = visibility0;
+    units = new UnitStore(terrain.r, terrain.c, initial.size());
     score = 0;
     maxScore = 0;
     turn = 1;
-    stepper = new Stepper();
     gameOver = false;
     
-    // populate the unit list from <initial>
+    // populate the unit store from <initial>
     for (InitialUnit data : initial) {
-      Unit unit = new Unit(data.owner, data.type);
       if (data.owner == Constants.attacker) {
         maxScore += 1;
       }
-      unitMap.put(data.pos, unit);
+      if (units.cellOf(data.pos.r, data.pos.c) < 0) {
+        logger.info(String.format("Initial unit at %s is out of the map, ignoring it", data.pos.toString()));
+        continue;
+      }
+      int slot = units.slotAt(data.pos.r, data.pos.c);
+      if (slot >= 0) { // a later unit replaces an earlier one
+        units.remove(slot);
+      }
+      units.add(data.owner, data.type, data.pos.r, data.pos.c);
     }
+    stepper = new Stepper();
+    fog = new FogOfWar(units, visibility, 2);
+    parallel = ForkJoinPool.getCommonPoolParallelism() > 1;
+  }
+  
+  /** Sets whether turns with many units are stepped in parallel, on the
+   * common fork-join pool. By default they are if there are spare
+   * cores. Both ways give exactly the same game. */
+  public void setParallel (boolean parallel0) {
+    parallel = parallel0;
+  }
+  
+  /** Returns true if the current turn should be stepped in parallel. */
+  protected boolean stepInParallel () {
+    return parallel && units.size() >= PARALLEL_UNITS;
+  }
+  
+  /** Returns the slot of the unit at packed position <pos>, or -1 if
+   * there is none. */
+  int slotAt (long pos) {
+    return units.slotAt(Position.unpackR(pos), Position.unpackC(pos));
   }
   
   /** How much damage should be dealt? We have strength <a> and opponent
@@ -54,49 +98,120 @@ public class Game {
   }
   
   /** An auxiliary structure. Waits for player commands and then
-   * executes them when requested. Should be used only once---for
-   * each time step, create a new Stepper and use that one. */
+   * executes them when requested. The same Stepper is used for the
+   * whole game: after each time step it is reset in place, so that a
+   * turn does not allocate anything.
+   * 
+   * Units are referred to by their slot in 'units' (slots do not change
+   * until dead or finished units are removed at the end of 'update'),
+   * target cells by their cell index in 'units'. Positions given to the
+   * checks are packed into longs (see 'Position.pack').
+   * 
+   * The phases that are independent per attacked unit or per slot (see
+   * 'runPhase') may run in parallel, in chunks that write disjoint
+   * slots; the phases that draw random numbers or move units run in
+   * order. So a parallel step gives the same game as a sequential one. */
   class Stepper {
-    // track units that have already received a command
-    Set<Position> exhausted;
+    // per slot: has the unit already received a command?
+    boolean[] exhausted;
+    
+    // per slot: accumulated health and stamina changes
+    int[] healthDelta, staminaDelta;
+    // per slot: health lost by an attacker to the defender it attacked,
+    // apart from 'healthDelta' so that an attack writes only its target
+    int[] counterDelta;
+    
+    // attacks: for each attacked slot, a linked list of attacking slots
+    int[] atkHead, atkCount; // per defender slot
+    int[] atkNext; // per attacker slot
+    int[] atkTargets; // attacked slots, in order of the first attack
+    int numAtkTargets;
+    
+    // movement: for each target cell, a linked list of moving slots
+    int[] moveHead, moveTail; // per cell
+    int[] moveNext; // per mover slot
+    int[] moveTargets; // target cells, in order of the first command
+    int numMoveTargets;
     
-    // structures for attacks and shots
-    Map<Position, List<Position> > atkMap;
-    Map<Position, List<UnitEvent> > combatResults;
+    // resolved movement: target cell of each slot that may move, or -1
+    int[] moveTo;
+    int[] winners; // slots with a target cell, in order of resolution
+    int numWinners;
     
-    // structures for movement
-    Map<Position, List<Position> > moveMap;
-    Map<Position, Position> moveChains;
+    // units that moved this turn, and the cells they moved from
+    int[] moved, movedFrom;
+    int numMoved;
+    
+    // phases that may run in parallel, see 'runPhase'
+    static final int ATTACKS = 0, EVENTS = 1, REGENERATION = 2;
     
     Stepper () {
-      exhausted = new HashSet<Position>();
-      atkMap = new HashMap<Position, List<Position> >();
-      combatResults = new HashMap<Position, List<UnitEvent> >();
-      moveMap = new HashMap<Position, List<Position> >();
-      moveChains = new HashMap<Position, Position>();
+      int cells = (terrain.r + 1) * terrain.c;
+      moveHead = new int[cells];
+      moveTail = new int[cells];
+      moveTargets = new int[cells];
+      Arrays.fill(moveHead, -1);
+      allocate(Math.max(16, units.size()));
+      reset();
     }
     
+    /** Allocates per-slot arrays for <n> slots. */
+    void allocate (int n) {
+      exhausted = new boolean[n];
+      healthDelta = new int[n];
+      staminaDelta = new int[n];
+      counterDelta = new int[n];
+      atkHead = new int[n];
+      atkCount = new int[n];
+      atkNext = new int[n];
+      atkTargets = new int[n];
+      moveNext = new int[n];
+      moveTo = new int[n];
+      winners = new int[n];
+      moved = new int[n];
+      movedFrom = new int[n];
+    }
     
-    /** Creates a UnitEvent that says the following: "Unit at position
-     * <pos> will have its health changed by <mod>." Does not check
-     * bounds. */
-    void healthChange (Position pos, int mod) {
-      combatResults.putIfAbsent(pos, new ArrayList<UnitEvent>());
-      combatResults.get(pos).add(UnitEvent.health(mod));
+    /** Prepares the stepper for the next time step. */
+    void reset () {
+      int n = units.size();
+      if (n > exhausted.length) {
+        allocate(n);
+      }
+      Arrays.fill(exhausted, 0, n, false);
+      Arrays.fill(healthDelta, 0, n, 0);
+      Arrays.fill(staminaDelta, 0, n, 0);
+      Arrays.fill(counterDelta, 0, n, 0);
+      Arrays.fill(atkHead, 0, n, -1);
+      Arrays.fill(atkCount, 0, n, 0);
+      Arrays.fill(moveTo, 0, n, -1);
+      for (int i = 0; i < numMoveTargets; i++) {
+        moveHead[moveTargets[i]] = -1;
+      }
+      numAtkTargets = 0;
+      numMoveTargets = 0;
+      numWinners = 0;
+      numMoved = 0;
     }
-    /** Creates a UnitEvent that says the following: "Unit at position
-     * <pos> will have its stamina changed by <mod>." Does not check
-     * bounds. */
-    void staminaChange (Position pos, int mod) {
-      combatResults.putIfAbsent(pos, new ArrayList<UnitEvent>());
-      combatResults.get(pos).add(UnitEvent.stamina(mod));
+    
+    /** Queues a move of unit in slot <slot> to cell <k>. */
+    void addMove (int slot, int k) {
+      moveNext[slot] = -1;
+      if (moveHead[k] < 0) {
+        moveHead[k] = slot;
+        moveTargets[numMoveTargets++] = k;
+      }
+      else {
+        moveNext[moveTail[k]] = slot;
+      }
+      moveTail[k] = slot;
     }
     
     /** Returns the stamina cost of moving from position <pos> to position <tgt>. */
-    int staminaCost (Position pos, Position tgt) {
-      int h0 = terrain.heightAt(pos);
-      int h1 = terrain.heightAt(tgt);
-      Terrain.Type tt = terrain.terrainAt(tgt);
+    int staminaCost (long pos, long tgt) {
+      int h0 = terrain.heightAt(Position.unpackR(pos), Position.unpackC(pos));
+      int h1 = terrain.heightAt(Position.unpackR(tgt), Position.unpackC(tgt));
+      Terrain.Type tt = terrain.terrainAt(Position.unpackR(tgt), Position.unpackC(tgt));
       if (h0 < h1 || tt == Terrain.Type.FOREST) {
         return Constants.roughTerrainCost;
       }
@@ -105,25 +220,25 @@ public class Game {
     
     /** Check if the movement is valid: if the two positions are adjacent
      * to one another and if terrain permits such a move.*/
-    boolean canMove (Position pos, Position tgt) {
+    boolean canMove (long pos, long tgt) {
       // are the two positions adjacent?
-      if (pos.distTo(tgt) != 1) {
+      if (Position.dist(pos, tgt) != 1) {
         return false;
       }
       // is the terrain not water and not sentinel?
-      Terrain.Type tt = terrain.terrainAt(tgt);
+      Terrain.Type tt = terrain.terrainAt(Position.unpackR(tgt), Position.unpackC(tgt));
       if (tt == Terrain.Type.WATER || tt == Terrain.Type.SENTINEL) {
         return false;
       }
       // is it the finish line? then, result depends on whether the
       // moving unit is an attacker
       if (tt == Terrain.Type.FINISH_LINE) {
-        Unit unit = unitMap.get(pos);
-        return (unit != null && unit.owner == Constants.attacker);
+        int slot = slotAt(pos);
+        return (slot >= 0 && units.owner(slot) == Constants.attacker);
       }
       // is the height difference not too large?
-      int h0 = terrain.heightAt(pos);
-      int h1 = terrain.heightAt(tgt);
+      int h0 = terrain.heightAt(Position.unpackR(pos), Position.unpackC(pos));
+      int h1 = terrain.heightAt(Position.unpackR(tgt), Position.unpackC(tgt));
       if (Math.abs(h0 - h1) > 1) {
         return false;
       }
@@ -131,137 +246,204 @@ public class Game {
       return true;
     }
     
+    /** Returns the cell index of packed position <pos>. */
+    int cellOf (long pos) {
+      return units.cellOf(Position.unpackR(pos), Position.unpackC(pos));
+    }
+    
     
-    /** Unit at position <pos> wants to move to position <tgt>. Checks
-     * if the movement is valid, and only then it is added to the list
-     * of pending commands. */
-    void moveCommand (Position pos, Position tgt) {
+    /** Unit in slot <slot> at position <pos> wants to move to position
+     * <tgt>. Checks if the movement is valid, and only then it is added
+     * to the list of pending commands. */
+    void moveCommand (int slot, long pos, long tgt) {
       // terrain/position related check
       if (!canMove(pos, tgt)) {
         return;
       }
       // enough stamina?
-      Unit unit = unitMap.get(pos);
       int cost = staminaCost(pos, tgt);
-      if (unit.getStamina() < cost) {
+      if (units.stamina(slot) < cost) {
         return;
       }
       // finish
-      staminaChange(pos, -cost);
-      moveMap.putIfAbsent(tgt, new ArrayList<Position>());
-      moveMap.get(tgt).add(pos);
-      exhausted.add(pos);
+      staminaDelta[slot] -= cost;
+      addMove(slot, cellOf(tgt));
+      exhausted[slot] = true;
     }
     
-    /** Unit at position <pos> wants to attack position <tgt>. 
-     * Check if the attack is valid: if the enemy is in range, if
-     * the unit is not trying to selfdestruct or harm its ally,
+    /** Unit in slot <attacker> at position <pos> wants to attack
+     * position <tgt>. Check if the attack is valid: if the enemy is in
+     * range, if the unit is not trying to selfdestruct or harm its ally,
      * and if it has enough stamina. */
-    void attackCommand (Position pos, Position tgt) {
+    void attackCommand (int attacker, long pos, long tgt) {
       // are both cells occupied?
-      if (!unitMap.containsKey(tgt)) {
+      int defender = slotAt(tgt);
+      if (defender < 0) {
         return;
       }
       // checks based on unit type
-      Unit attacker = unitMap.get(pos);
-      if (attacker.type == Unit.Type.WARRIOR) {
-        if (!canMove(pos, tgt) || attacker.getStamina() < staminaCost(pos, tgt)) {
+      Unit.Type type = units.type(attacker);
+      if (type == Unit.Type.WARRIOR) {
+        if (!canMove(pos, tgt) || units.stamina(attacker) < staminaCost(pos, tgt)) {
           return;
         }
       }
-      if (attacker.type == Unit.Type.ARCHER) { // range 2, and must see the target
-        if (!visibility.visibleFrom(pos).contains(tgt)) {
+      if (type == Unit.Type.ARCHER) { // range 2, and must see the target
+        int pr = Position.unpackR(pos), pc = Position.unpackC(pos);
+        if (!visibility.canSee(pr, pc, Position.unpackR(tgt), Position.unpackC(tgt))) {
           return;
         }
-        int dist = pos.distTo(tgt);
+        int dist = Position.dist(pos, tgt);
         if (dist > Constants.archer_range) {
           return;
         }
       }
       // is it really an enemy?
-      Unit defender = unitMap.get(tgt);
-      if (attacker.owner == defender.owner) {
+      if (units.owner(attacker) == units.owner(defender)) {
         return;
       }
       // finish
-      atkMap.putIfAbsent(tgt, new ArrayList<Position>());
-      atkMap.get(tgt).add(pos);
-      if (attacker.type == Unit.Type.WARRIOR) {
+      if (atkHead[defender] < 0) {
+        atkTargets[numAtkTargets++] = defender;
+      }
+      atkNext[attacker] = atkHead[defender];
+      atkHead[defender] = attacker;
+      atkCount[defender]++;
+      if (type == Unit.Type.WARRIOR) {
         // loses stamina and tries to move there
         int cost = staminaCost(pos, tgt);
-        staminaChange(pos, -cost);
-        moveMap.putIfAbsent(tgt, new ArrayList<Position>());
-        moveMap.get(tgt).add(pos);
+        staminaDelta[attacker] -= cost;
+        addMove(attacker, cellOf(tgt));
       }
-      exhausted.add(pos);
+      exhausted[attacker] = true;
     }
     
-    /** Player <player> has given the command <cmd>. We check the
-     * command for correctness, and only then do we execute it. */
-    void command (int player, Command cmd) {
+    /** Player <player> has given a command of type <type> to the unit
+     * at <pos>, with target <tgt>. We check the command for
+     * correctness, and only then do we execute it. */
+    void command (int player, Command.Type type, long pos, long tgt) {
       // does the source cell contain this player's unit?
-      Unit unit = unitMap.get(cmd.pos);
-      if (unit == null || unit.owner != player) {
+      int slot = slotAt(pos);
+      if (slot < 0 || units.owner(slot) != player) {
         return;
       }
       // did it already receive a command?
-      if (exhausted.contains(cmd.pos)) {
+      if (exhausted[slot]) {
         return;
       }
       // finish
-      if (cmd.type == Command.Type.ATTACK) {
-        attackCommand(cmd.pos, cmd.tgt);
+      if (type == Command.Type.ATTACK) {
+        attackCommand(slot, pos, tgt);
       }
       else
-      if (cmd.type == Command.Type.MOVE) {
-        moveCommand(cmd.pos, cmd.tgt);
+      if (type == Command.Type.MOVE) {
+        moveCommand(slot, pos, tgt);
       }
     }
     
     
+    /** Runs the phase <phase> for indices <lo> .. <hi>-1: attacked units
+     * (indices into 'atkTargets') or slots. Each index writes only its
+     * own slots, so chunks of a phase may run concurrently. */
+    void runPhase (int phase, int lo, int hi) {
+      switch (phase) {
+        case ATTACKS: executeAttacks(lo, hi); break;
+        case EVENTS: applyEvents(lo, hi); break;
+        case REGENERATION: regenerate(lo, hi); break;
+      }
+    }
+    
+    /** Runs the phase <phase> for indices 0 .. <n>-1, in parallel if the
+     * turn is large enough. */
+    void runPhase (int phase, int n) {
+      if (stepInParallel() && n > CHUNK_UNITS) {
+        ForkJoinPool.commonPool().invoke(new Chunk(phase, 0, n));
+      }
+      else {
+        runPhase(phase, 0, n);
+      }
+    }
+    
+    /** Runs a phase for indices <lo> .. <hi>-1, splitting into chunks of
+     * at most 'CHUNK_UNITS' indices. */
+    private class Chunk extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      
+      final int phase, lo, hi;
+      
+      Chunk (int phase0, int lo0, int hi0) {
+        phase = phase0;
+        lo = lo0;
+        hi = hi0;
+      }
+      
+      @Override
+      protected void compute () {
+        if (hi - lo > CHUNK_UNITS) {
+          int mid = (lo + hi) >>> 1;
+          invokeAll(new Chunk(phase, lo, mid), new Chunk(phase, mid, hi));
+          return;
+        }
+        runPhase(phase, lo, hi);
+      }
+    }
+    
     /** Executes all queued attacks. */
     void executeAttacks () {
-      for (Position tgt : atkMap.keySet()) { // for each cell that is attacked
-        List<Position> attackers = atkMap.get(tgt);
-        Unit defender = unitMap.get(tgt);
-        double baseDef = defender.getDefense() / attackers.size();
+      runPhase(ATTACKS, numAtkTargets);
+    }
+    
+    /** Executes the attacks on 'atkTargets[lo]' .. 'atkTargets[hi-1]'.
+     * Every attacker attacks one unit, so its slot is written only here. */
+    void executeAttacks (int lo, int hi) {
+      for (int i = lo; i < hi; i++) { // for each unit that is attacked
+        int defender = atkTargets[i];
+        int tr = units.row(defender), tc = units.col(defender);
+        double baseDef = units.defense(defender) / atkCount[defender];
         
         // have defender fight with each attacker
-        for (Position pos : attackers) {
-          Unit attacker = unitMap.get(pos);
-          double atk = attacker.getAttack();
+        for (int attacker = atkHead[defender]; attacker >= 0; attacker = atkNext[attacker]) {
+          double atk = units.attack(attacker);
           double def = baseDef;
           // apply combat modifiers from terrain
-          if (terrain.heightAt(tgt) > terrain.heightAt(pos)) {
+          if (terrain.heightAt(tr, tc) > terrain.heightAt(units.row(attacker), units.col(attacker))) {
             def *= 1.5;
           }
-          if (terrain.terrainAt(tgt) == Terrain.Type.FOREST) {
+          if (terrain.terrainAt(tr, tc) == Terrain.Type.FOREST) {
             def *= 1.5;
           }
-          if (attacker.type == Unit.Type.WARRIOR) {
+          if (units.type(attacker) == Unit.Type.WARRIOR) {
             // fight! close combat!
             int atkDmgDealt = blow(atk, def);
             int defDmgDealt = blow(def, atk);
-            healthChange(tgt, -atkDmgDealt);
-            healthChange(pos, -defDmgDealt);
+            healthDelta[defender] -= atkDmgDealt;
+            counterDelta[attacker] -= defDmgDealt;
           }
           else
-          if (attacker.type == Unit.Type.ARCHER) {
+          if (units.type(attacker) == Unit.Type.ARCHER) {
             // ranged volley of arrows
             int atkDmgDealt = blow(atk, def);
-            healthChange(tgt, -atkDmgDealt);
+            healthDelta[defender] -= atkDmgDealt;
           }
         }
       }
     }
     
-    /** Applies all unit events. */
+    /** Applies the accumulated health and stamina changes. Combat only
+     * ever decreases health and stamina, so applying the sum once and
+     * clamping it gives the same result as applying every change on
+     * its own (as 'UnitEvent.apply' does). */
     void applyEvents () {
-      for (Position pos : combatResults.keySet()) { // for each recipient...
-        List<UnitEvent> events = combatResults.get(pos);
-        Unit unit = unitMap.get(pos);
-        for (UnitEvent ev : events) { // for each of his events... apply it
-          ev.apply(unit);
+      runPhase(EVENTS, units.size());
+    }
+    void applyEvents (int lo, int hi) {
+      for (int s = lo; s < hi; s++) {
+        int health = healthDelta[s] + counterDelta[s];
+        if (health != 0) {
+          units.changeHealth(s, health);
+        }
+        if (staminaDelta[s] != 0) {
+          units.changeStamina(s, staminaDelta[s]);
         }
       }
     }
@@ -269,20 +451,19 @@ public class Game {
     /** Units that survived and were not given any orders will
      * regenerate health and stamina. */
     void regenerate () {
-      for (Position pos : unitMap.keySet()) {
+      runPhase(REGENERATION, units.size());
+    }
+    void regenerate (int lo, int hi) {
+      for (int s = lo; s < hi; s++) {
         // if unit is exhausted or dead, ignore it
-        if (exhausted.contains(pos)) {
-          continue;
-        }
-        Unit unit = unitMap.get(pos);
-        if (unit.isDead()) {
+        if (exhausted[s] || units.isDead(s)) {
           continue;
         }
         // find out if it is next to water
+        int pr = units.row(s), pc = units.col(s);
         boolean nextToWater = false;
         for (int dir = 0; dir < 4; dir++) {
-          Position adj = pos.adj(dir);
-          if (terrain.terrainAt(adj) == Terrain.Type.WATER) {
+          if (terrain.terrainAt(pr + Position.dr[dir], pc + Position.dc[dir]) == Terrain.Type.WATER) {
             nextToWater = true;
             break;
           }
@@ -297,80 +478,104 @@ public class Game {
           hpRegen = Constants.healthRegen;
           spRegen = Constants.staminaRegen;
         }
-        unit.changeHealth(hpRegen);
-        unit.changeStamina(spRegen);
+        units.changeHealth(s, hpRegen);
+        units.changeStamina(s, spRegen);
       }
     }
     
-    /** Constructs 'moveChains' from 'moveMap': where multiple units
-     * wanted to move, we choose randomly one of them that receives
-     * priority. (But we ignore dead units.) */
+    /** Fills 'moveTo': where multiple units wanted to move, we choose
+     * randomly one of them that receives priority. (But we ignore dead
+     * units.) Targets are resolved in the order in which they were
+     * first commanded, so that the random draws do not depend on
+     * hashing. */
     void solveCollisions () {
-      for (Position tgt : moveMap.keySet()) {
-        List<Position> movers = moveMap.get(tgt);
-        
-        // clear dead movers
-        List<Position> nonDeadMovers = new ArrayList<Position>();
-        for (Position pos : movers) {
-          Unit unit = unitMap.get(pos);
-          if (!unit.isDead()) {
-            nonDeadMovers.add(pos);
+      for (int i = 0; i < numMoveTargets; i++) {
+        int k = moveTargets[i];
+        // count non-dead movers
+        int n = 0;
+        for (int s = moveHead[k]; s >= 0; s = moveNext[s]) {
+          if (!units.isDead(s)) {
+            n++;
           }
         }
-        // randomly choose the winner
-        int n = nonDeadMovers.size();
         if (n == 0) {
           continue;
         }
+        // randomly choose the winner
         int who = rng.nextInt(n);
-        Position pos = nonDeadMovers.get(who);
-        moveChains.put(pos, tgt);
+        for (int s = moveHead[k]; s >= 0; s = moveNext[s]) {
+          if (units.isDead(s)) {
+            continue;
+          }
+          if (who == 0) {
+            moveTo[s] = k;
+            winners[numWinners++] = s;
+            break;
+          }
+          who--;
+        }
       }
     }
     
-    /** Finally moves all units in 'unitMap' to their destination. 
-     * This includes clearing out any zombie units. */
+    /** Returns true if cell <k> contains a living unit. */
+    boolean occupied (int k) {
+      int s = units.slotIn(k);
+      return (s >= 0 && !units.isDead(s));
+    }
+    
+    /** Finally moves all units in 'units' to their destination. 
+     * This includes clearing out any zombie units. Dead units never
+     * move, so they can stay in place until the chains are resolved;
+     * their cells count as empty. When stepping in parallel, the fog of
+     * war is told about the moves all at once, after the chains. */
     void moveIt () {
-      // clear zombies
-      Iterator<Position> it = unitMap.keySet().iterator();
-      while (it.hasNext()) {
-        Position pos = it.next();
-        Unit unit = unitMap.get(pos);
-        if (unit.isDead()) {
-          it.remove();
-        }
-      }
+      boolean parallelFog = stepInParallel();
       // move along the chains
-      ArrayList<Position> temp = new ArrayList<Position>(moveChains.keySet());
-      for (Position pos : temp) {
-        if (!moveChains.containsKey(pos)) {
+      for (int i = 0; i < numWinners; i++) {
+        int first = winners[i];
+        if (moveTo[first] < 0) { // already resolved as part of another chain
           continue;
         }
-        // find the chain
-        List<Position> chain = new ArrayList<Position>();
-        Position curr = pos;
-        while (moveChains.containsKey(curr)) {
-          chain.add(curr);
-          curr = moveChains.get(curr);
-          if (curr.equals(pos)) { // cycle
+        // find the end of the chain
+        int k = moveTo[first];
+        boolean cycle = false;
+        while (occupied(k) && moveTo[units.slotIn(k)] >= 0) {
+          int s = units.slotIn(k);
+          if (s == first) { // cycle
+            cycle = true;
             break;
           }
+          k = moveTo[s];
         }
-        if (!unitMap.containsKey(curr) && !curr.equals(pos)) { // will not move a cycle
-          chain.add(curr);
-          // move units along the chain
-          int n = chain.size();
-          for (int i = n - 2; i >= 0; i--) {
-            Position from = chain.get(i);
-            Position to = chain.get(i+1);
-            Unit who = unitMap.get(from);
-            unitMap.remove(from);
-            unitMap.put(to, who);
+        boolean moves = (!cycle && !occupied(k)); // will not move a cycle
+        // move units along the chain, and clear this part of it
+        int carried = first;
+        while (carried >= 0 && moveTo[carried] >= 0) {
+          int next = moveTo[carried];
+          int displaced = units.slotIn(next);
+          moveTo[carried] = -1;
+          if (moves) {
+            int from = units.cell(carried);
+            units.moveTo(carried, next);
+            if (parallelFog) {
+              moved[numMoved] = carried;
+              movedFrom[numMoved++] = from;
+            }
+            else {
+              fog.moved(carried, from);
+            }
           }
+          carried = (displaced >= 0 && !units.isDead(displaced) ? displaced : -1);
         }
-        // clear this part of moveChains
-        for (Position pos2 : chain) {
-          moveChains.remove(pos2);
+      }
+      if (parallelFog) {
+        fog.movedAll(moved, movedFrom, numMoved);
+      }
+      // clear zombies
+      for (int s = units.size() - 1; s >= 0; s--) {
+        if (units.isDead(s)) {
+          fog.removing(s);
+          units.remove(s);
         }
       }
     }
@@ -378,15 +583,13 @@ public class Game {
     /** Clears attacking units that have reached the last row, and
      * increases the attacker's score. */
     void finishLine () {
-      Iterator<Position> it = unitMap.keySet().iterator();
-      while (it.hasNext()) {
-        Position pos = it.next();
-        Unit unit = unitMap.get(pos);
-        if (unit.owner != Constants.attacker) {
+      for (int s = units.size() - 1; s >= 0; s--) {
+        if (units.owner(s) != Constants.attacker) {
           continue;
         }
-        if (terrain.terrainAt(pos) == Terrain.Type.FINISH_LINE) {
-          it.remove();
+        if (terrain.terrainAt(units.row(s), units.col(s)) == Terrain.Type.FINISH_LINE) {
+          fog.removing(s);
+          units.remove(s);
           score += 1;
         }
       }
@@ -395,16 +598,20 @@ public class Game {
     /** Checks if one side of the battle has been completely wiped out.
      * If so, the rest can be simulated (assuming infinite time). */
     void checkEnd () {
-      int[] counts = new int[]{0, 0};
-      for (Position pos : unitMap.keySet()) {
-        Unit unit = unitMap.get(pos);
-        counts[unit.owner] += 1;
+      int atkCount = 0, defCount = 0;
+      for (int s = 0; s < units.size(); s++) {
+        if (units.owner(s) == Constants.attacker) {
+          atkCount++;
+        }
+        else {
+          defCount++;
+        }
       }
-      if (counts[0] == 0) {
-        score += counts[1];
+      if (defCount == 0) {
+        score += atkCount;
         gameOver = true;
       }
-      if (counts[1] == 0) {
+      if (atkCount == 0) {
         gameOver = true;
       }
     }
@@ -426,19 +633,22 @@ public class Game {
     if (player != Constants.attacker && player != Constants.defender) {
       return;
     }
-    Scanner sc = new Scanner(str);
+    CommandReader in = new CommandReader(str);
     int count;
     try {
-      count = sc.nextInt();
+      count = in.nextInt();
     }
     catch (NoSuchElementException exc) {
       logger.info(String.format("Error while parsing commands from client %d, no count", player));
       return;
     }
+    Command.Type[] types = Command.Type.values();
     try {
-      for (int i = 0; i < count; i++) {
-        Command cmd = Command.loadFrom(sc);
-        stepper.command(player, cmd);
+      for (int i = 0; i < count; i++) { // row, column, type, target row, target column
+        long pos = Position.pack(in.nextInt(), in.nextInt());
+        Command.Type type = types[in.nextInt()];
+        long tgt = Position.pack(in.nextInt(), in.nextInt());
+        stepper.command(player, type, pos, tgt);
       }
     }
     catch (NoSuchElementException | IndexOutOfBoundsException exc) {
@@ -460,13 +670,10 @@ public class Game {
       return;
     }
     stepper.update();
+    stepper.reset();
     turn += 1;
     if (turn > Constants.maxTurns) {
       gameOver = true;
-      stepper = null;
-    }
-    else {
-      stepper = new Stepper();
     }
   }
   
@@ -485,49 +692,116 @@ public class Game {
     return turn;
   }
   
+  /** Returns the first line of every view: turn, score and state. */
+  protected String header () {
+    return String.format("%d %d %d\n", turn, score, (gameOver ? 1 : 0));
+  }
+  
+  /** Writes to <out> the slots of all units visible to <player>: its
+   * own units, then the others that they see. Returns their number. */
+  protected int findVisible (int player, int[] out) {
+    int count = 0;
+    for (int s = 0; s < units.size(); s++) {
+      if (player == Constants.observer || units.owner(s) == player) {
+        out[count++] = s;
+      }
+    }
+    if (player != Constants.observer) {
+      count = fog.seenOthers(player, out, count);
+    }
+    return count;
+  }
+  
+  /** Appends the line of the unit in slot <s>: its position and the
+   * same description as 'Unit.toString'. */
+  protected void appendUnit (StringBuilder bui, int s) {
+    bui.append(units.row(s)).append(' ').append(units.col(s)).append(' ');
+    bui.append(units.id(s)).append(' ').append(units.owner(s)).append(' ').append(units.type(s).ordinal()).append(' ');
+    bui.append(units.health(s)).append(' ').append(units.stamina(s)).append('\n');
+  }
+  
   /** Returns a String describing the game state: turn, score, state and
    * locations of units visible to player <i>. If <i> equals -1, returns
    * all units (observer sees it all). */
   public String getData (int player) {
     StringBuilder bui = new StringBuilder();
-    bui.append(String.format("%d %d %d\n", turn, score, (gameOver ? 1 : 0)));
-    
-    // find all visible positions with units on them
-    Set<Position> visible = new HashSet<Position>();
-    for (Map.Entry<Position, Unit> entry : unitMap.entrySet()) {
-      Position pos = entry.getKey();
-      Unit unit = entry.getValue();
-      if (player != Constants.observer && unit.owner != player) {
-        continue;
+    bui.append(header());
+    
+    int[] visible = new int[units.size()];
+    int count = findVisible(player, visible);
+    bui.append(count);
+    bui.append("\n");
+    for (int i = 0; i < count; i++) {
+      appendUnit(bui, visible[i]);
+    }
+    return bui.toString();
+  }
+  
+  /** Returns the views of all three ids, indexed by id + 1: observer,
+   * defender, attacker. Same as 'getData' for each id, but every unit
+   * line is written only once, into a shared buffer, and each view
+   * copies the slices it needs. */
+  public String[] getViews () {
+    int n = units.size();
+    StringBuilder lines = new StringBuilder(24 * n);
+    int[] end = new int[n + 1]; // line of slot s is lines[end[s] .. end[s+1]-1]
+    for (int s = 0; s < n; s++) {
+      appendUnit(lines, s);
+      end[s + 1] = lines.length();
+    }
+    String header = header();
+    
+    String[] views = new String[3];
+    int[] visible = new int[n];
+    for (int id = Constants.observer; id <= Constants.attacker; id++) {
+      int count = findVisible(id, visible);
+      StringBuilder bui = new StringBuilder(header.length() + 8 + (id == Constants.observer ? lines.length() : 24 * count));
+      bui.append(header);
+      bui.append(count);
+      bui.append("\n");
+      if (id == Constants.observer) { // all units, in slot order
+        bui.append(lines);
       }
-      visible.add(pos);
-      
-      // add all positions that this unit can see
-      if (player != Constants.observer) {
-        for (Position pos2 : visibility.visibleFrom(pos)) {
-          if (!unitMap.containsKey(pos2)) {
-            continue;
-          }
-          visible.add(pos2);
+      else {
+        for (int i = 0; i < count; i++) {
+          int s = visible[i];
+          bui.append(lines, end[s], end[s + 1]);
         }
       }
+      views[id + 1] = bui.toString();
     }
-    // put these units into stringbuilder
-    bui.append(visible.size());
-    bui.append("\n");
-    for (Position pos : visible) {
-      Unit unit = unitMap.get(pos);
-      bui.append(String.format("%s %s\n", pos.toString(), unit.toString()));
-    }
-    return bui.toString();
+    return views;
   }
   
   /** Returns a String describing the map: terrain and visibility. */
   public String getMapString () {
+    StringJoiner res = new StringJoiner("\n");
+    forMapString(res::add);
+    return res.toString();
+  }
+  
+  /** Returns true if the visibility graph is computed lazily (see
+   * 'LazyVisibility'). Then the map string lists far more than the
+   * graph keeps, so it should be passed on with 'forMapString' rather
+   * than kept whole. */
+  public boolean isMapLazy () {
+    return (visibility instanceof LazyVisibility);
+  }
+  
+  /** Passes the map string to <out> in pieces: the terrain, and then
+   * the visibility a band of rows at a time, so that all of it is never
+   * in memory at once. The pieces joined by newlines are 'getMapString'. */
+  public void forMapString (Consumer<String> out) {
+    out.accept(terrain.toString());
     StringBuilder bui = new StringBuilder();
-    bui.append(terrain.toString());
-    bui.append("\n");
-    bui.append(visibility.toString());
-    return bui.toString();
+    for (int lo = 0; lo < terrain.r; lo += LazyVisibility.SIDE) {
+      bui.setLength(0);
+      visibility.appendRows(bui, lo, Math.min(terrain.r, lo + LazyVisibility.SIDE), terrain.c);
+      if (bui.length() > 0) {
+        bui.setLength(bui.length() - 1); // the last newline separates pieces
+        out.accept(bui.toString());
+      }
+    }
+    out.accept("");
   }
 }
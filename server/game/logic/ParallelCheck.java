@@ -0,0 +1,107 @@
+package server.game.logic;
+
+import java.util.*;
+import java.util.concurrent.*;
+import server.game.map.*;
+import server.game.units.*;
+import server.game.Constants;
+
+
+/** Checks that stepping a turn in parallel (see 'Game.setParallel')
+ * gives the same game as stepping it sequentially. Two games are set up
+ * alike on a random map with <units> units, half of them per player,
+ * one stepped sequentially and one in parallel. Each turn every unit is
+ * given a random move or attack, the same in both games, and after each
+ * turn the views of all three ids are compared. Prints the time each
+ * game took per turn; exits with status 1 on the first difference. Run
+ * with
+ *   java -Djava.util.concurrent.ForkJoinPool.common.parallelism=4 \
+ *     -cp server.jar server.game.logic.ParallelCheck [units] [turns] [seed]
+ * The parallelism may be set above the number of cores, so that the
+ * parallel phases are split and interleaved even on one core. */
+public class ParallelCheck {
+  /** Returns <count> units on distinct random cells of <map>, those in
+   * the upper half of the map owned by the attacker. */
+  static List<InitialUnit> randomUnits (Random rng, Terrain map, int count) {
+    List<InitialUnit> res = new ArrayList<InitialUnit>();
+    Set<Integer> taken = new HashSet<Integer>();
+    while (res.size() < count) {
+      int r = rng.nextInt(map.r);
+      int c = rng.nextInt(map.c);
+      if (!taken.add(r * map.c + c)) {
+        continue;
+      }
+      int owner = (r < map.r / 2 ? Constants.attacker : Constants.defender);
+      Unit.Type type = (rng.nextBoolean() ? Unit.Type.WARRIOR : Unit.Type.ARCHER);
+      res.add(new InitialUnit(owner, type, new Position(r, c)));
+    }
+    return res;
+  }
+  
+  /** Returns commands for all units of <player> in <game>: each moves or
+   * (one time in three) attacks towards a random neighbouring cell. */
+  static String randomCommands (Random rng, Game game, int player) {
+    StringBuilder bui = new StringBuilder();
+    int n = 0;
+    UnitStore units = game.units;
+    for (int s = 0; s < units.size(); s++) {
+      if (units.owner(s) != player) {
+        continue;
+      }
+      int r = units.row(s);
+      int c = units.col(s);
+      int d = rng.nextInt(4);
+      bui.append(' ').append(r).append(' ').append(c);
+      bui.append(rng.nextInt(3) == 0 ? " 1 " : " 0 ");
+      bui.append(r + Position.dr[d]).append(' ').append(c + Position.dc[d]);
+      n++;
+    }
+    return n + bui.toString();
+  }
+  
+  public static void main (String[] args) {
+    int count = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+    int turns = (args.length > 1 ? Integer.parseInt(args[1]) : 20);
+    long seed = (args.length > 2 ? Long.parseLong(args[2]) : 1);
+    int side = (int)Math.ceil(Math.sqrt(count * 4.0)); // a unit on every fourth cell
+    Random rng = new Random(seed);
+    Terrain map = Terrain.mildRandom(rng, side, side);
+    Visibility visibility = Visibility.of(map, Constants.sight);
+    List<InitialUnit> initial = randomUnits(rng, map, count);
+    
+    Game seq = new Game(new Random(seed), map, visibility, initial);
+    Game par = new Game(new Random(seed), map, visibility, initial);
+    seq.setParallel(false);
+    par.setParallel(true);
+    System.out.printf("%dx%d map, %d units, common pool parallelism %d%n", side, side, count, ForkJoinPool.getCommonPoolParallelism());
+    
+    Random commands = new Random(seed + 1);
+    double seqMillis = 0, parMillis = 0;
+    for (int turn = 1; turn <= turns && !seq.isGameOver(); turn++) {
+      boolean parallel = par.stepInParallel();
+      for (int player = 0; player < 2; player++) {
+        String cmds = randomCommands(commands, seq, player);
+        seq.command(player, cmds);
+        par.command(player, cmds);
+      }
+      long start = System.nanoTime();
+      seq.advance();
+      long mid = System.nanoTime();
+      par.advance();
+      long end = System.nanoTime();
+      seqMillis += (mid - start) / 1e6;
+      parMillis += (end - mid) / 1e6;
+      
+      String[] a = seq.getViews();
+      String[] b = par.getViews();
+      for (int i = 0; i < a.length; i++) {
+        if (!a[i].equals(b[i])) {
+          System.out.printf("MISMATCH after turn %d in the view of id %d%n", turn, i - 1);
+          System.exit(1);
+        }
+      }
+      System.out.printf("turn %d: %d units, sequential %.1f ms, parallel %.1f ms%s, same views%n", turn, seq.units.size(), (mid - start) / 1e6, (end - mid) / 1e6, parallel ? "" : " (too few units, stepped sequentially)");
+    }
+    System.out.printf("parallel and sequential steps agree; %.1f ms vs %.1f ms in total%n", seqMillis, parMillis);
+  }
+}
@@ -0,0 +1,188 @@
+package server.game.logic;
+
+import java.nio.*;
+import server.game.units.*;
+import server.game.Constants;
+
+
+/** Writes the views of a game (the same text as 'Game.getViews') as
+ * ASCII bytes into byte buffers that are reused from turn to turn, so
+ * that a turn can be sent to the clients without building Strings.
+ * Numbers are written digit by digit, without String.format.
+ *
+ * Encoding is split in two, so that the views can be encoded while the
+ * game goes on: 'snapshot' copies what the views are made of out of the
+ * game, on the game's thread, and 'encode' writes them from the copy.
+ *
+ * Not thread-safe: the buffers returned by 'encode' are overwritten by
+ * the next call, copy them if they are needed for longer. */
+public class StateEncoder {
+  protected static final int HEADER_BYTES = 64; // turn, score, state and count
+  protected static final int FIELDS = 7; // numbers in the line of a unit
+  protected static final int UNIT_BYTES = FIELDS * 12; // with separators
+  
+  /** What the views of a turn are made of, copied out of the game: the
+   * header, the numbers of each unit's line, and the slots each player
+   * sees. Reused from turn to turn. */
+  public static class Snapshot {
+    protected int turn, score;
+    protected boolean gameOver;
+    protected int size; // number of units
+    protected int[] fields; // FIELDS numbers per slot
+    protected int[][] visible; // per player id: the slots it sees
+    protected int[] counts; // per player id: how many
+    
+    public Snapshot () {
+      fields = new int[0];
+      visible = new int[2][0];
+      counts = new int[2];
+    }
+  }
+  
+  protected Game game;
+  protected ByteBuffer[] views; // indexed by id + 1
+  protected Snapshot current; // for 'encode()'
+  protected int[] lineStart; // offset of the line of each slot in the observer view
+  protected final byte[] digits;
+  
+  /** Constructs an encoder of the views of <game0>. */
+  public StateEncoder (Game game0) {
+    game = game0;
+    views = new ByteBuffer[3];
+    for (int i = 0; i < 3; i++) {
+      views[i] = ByteBuffer.allocate(1024);
+    }
+    current = new Snapshot();
+    lineStart = new int[0];
+    digits = new byte[20];
+  }
+  
+  /** Writes <value> in decimal into <out> at <pos>. Returns the
+   * position after the last digit. */
+  protected int putInt (byte[] out, int pos, int value) {
+    long x = value;
+    if (x < 0) {
+      out[pos++] = '-';
+      x = -x;
+    }
+    int n = 0;
+    do {
+      digits[n++] = (byte)('0' + x % 10);
+      x /= 10;
+    } while (x > 0);
+    while (n > 0) {
+      out[pos++] = digits[--n];
+    }
+    return pos;
+  }
+  
+  /** Returns the buffer of view <i>, cleared and with room for at least
+   * <bytes> bytes. */
+  protected ByteBuffer prepare (int i, int bytes) {
+    if (views[i].capacity() < bytes) {
+      views[i] = ByteBuffer.allocate(Math.max(bytes, 2 * views[i].capacity()));
+    }
+    views[i].clear();
+    return views[i];
+  }
+  
+  /** Writes the first two lines of a view into <out> at <pos>: turn,
+   * score and state, and the number of units. Returns the position
+   * after them. */
+  protected int putHeader (byte[] out, int pos, Snapshot snap, int count) {
+    pos = putInt(out, pos, snap.turn);
+    out[pos++] = ' ';
+    pos = putInt(out, pos, snap.score);
+    out[pos++] = ' ';
+    pos = putInt(out, pos, (snap.gameOver ? 1 : 0));
+    out[pos++] = '\n';
+    pos = putInt(out, pos, count);
+    out[pos++] = '\n';
+    return pos;
+  }
+  
+  /** Copies what the views of the current turn are made of into <snap>
+   * and returns it. Reads the game, so it must not run concurrently
+   * with anything that changes it. */
+  public Snapshot snapshot (Snapshot snap) {
+    UnitStore units = game.units;
+    int n = units.size();
+    snap.turn = game.turn;
+    snap.score = game.score;
+    snap.gameOver = game.gameOver;
+    snap.size = n;
+    if (snap.fields.length < FIELDS * n) {
+      snap.fields = new int[Math.max(FIELDS * n, 2 * snap.fields.length)];
+    }
+    int[] f = snap.fields;
+    for (int s = 0; s < n; s++) {
+      int at = FIELDS * s;
+      f[at] = units.row(s);
+      f[at + 1] = units.col(s);
+      f[at + 2] = units.id(s);
+      f[at + 3] = units.owner(s);
+      f[at + 4] = units.type(s).ordinal();
+      f[at + 5] = units.health(s);
+      f[at + 6] = units.stamina(s);
+    }
+    for (int id = Constants.defender; id <= Constants.attacker; id++) {
+      if (snap.visible[id].length < n) {
+        snap.visible[id] = new int[Math.max(n, 2 * snap.visible[id].length)];
+      }
+      snap.counts[id] = game.findVisible(id, snap.visible[id]);
+    }
+    return snap;
+  }
+  
+  /** Encodes the views of the current turn, see 'encode(Snapshot)'. */
+  public ByteBuffer[] encode () {
+    return encode(snapshot(current));
+  }
+  
+  /** Encodes the views of all three ids from <snap>, indexed by id + 1:
+   * observer, defender, attacker. Each returned buffer holds one view
+   * from its position to its limit, byte for byte the text of
+   * 'getViews' at the time of the snapshot. The unit lines are written
+   * once, into the observer view, and copied from there into the views
+   * of the players. Does not touch the game. */
+  public ByteBuffer[] encode (Snapshot snap) {
+    int n = snap.size;
+    if (lineStart.length < n + 1) {
+      lineStart = new int[Math.max(n + 1, 2 * lineStart.length)];
+    }
+    
+    // the observer sees all units, in slot order
+    ByteBuffer obs = prepare(Constants.observer + 1, HEADER_BYTES + UNIT_BYTES * n);
+    byte[] out = obs.array();
+    int pos = putHeader(out, 0, snap, n);
+    int[] f = snap.fields;
+    for (int s = 0; s < n; s++) {
+      lineStart[s] = pos;
+      for (int i = 0; i < FIELDS; i++) {
+        pos = putInt(out, pos, f[FIELDS * s + i]);
+        out[pos++] = (byte)(i < FIELDS - 1 ? ' ' : '\n');
+      }
+    }
+    lineStart[n] = pos;
+    obs.position(pos);
+    
+    for (int id = Constants.defender; id <= Constants.attacker; id++) {
+      int count = snap.counts[id];
+      int[] visible = snap.visible[id];
+      ByteBuffer buf = prepare(id + 1, HEADER_BYTES + UNIT_BYTES * count);
+      byte[] dst = buf.array();
+      int at = putHeader(dst, 0, snap, count);
+      for (int i = 0; i < count; i++) {
+        int s = visible[i];
+        int len = lineStart[s + 1] - lineStart[s];
+        System.arraycopy(out, lineStart[s], dst, at, len);
+        at += len;
+      }
+      buf.position(at);
+    }
+    for (ByteBuffer buf : views) {
+      buf.flip();
+    }
+    return views;
+  }
+}
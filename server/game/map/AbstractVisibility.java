@@ -0,0 +1,270 @@
+package server.game.map;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/** Contains all the more common stuff between 'SimpleVisibility' and
+ * 'LinearVisibility'. The graph is dense: for each cell we keep a
+ * fixed-width bitmask over the offsets of the sight diamond, all masks
+ * stored one after another in a flat array. Bit <k> of from-mask of
+ * cell A is set if A sees A + offset <k>, bit <k> of to-mask of cell A
+ * is set if A + offset <k> sees A. */
+abstract class AbstractVisibility implements Visibility {
+  protected Terrain map;
+  protected int range;
+  protected Diamond diamond;
+  protected int words; // number of longs per mask
+  protected long[] from, to;
+  protected volatile boolean frozen;
+  
+  /** Maps with fewer cells are built sequentially, the fork-join
+   * overhead is not worth it. */
+  static final int PARALLEL_CELLS = 1 << 14;
+  /** Roughly how many cells one task of the parallel build handles. */
+  static final int BAND_CELLS = 1 << 12;
+  
+  /** Constructs a visibility graph for the given Terrain and range.
+   * Large maps are built in parallel if there are spare cores. */
+  public AbstractVisibility (Terrain map0, int range0) {
+    this(map0, range0, map0.r * map0.c >= PARALLEL_CELLS && ForkJoinPool.getCommonPoolParallelism() > 1);
+  }
+  
+  /** Constructs a visibility graph for the given Terrain and range, in
+   * parallel (on the common fork-join pool) if <parallel> is true. Both
+   * ways give exactly the same graph. */
+  public AbstractVisibility (Terrain map0, int range0, boolean parallel) {
+    map = map0;
+    range = range0;
+    diamond = new Diamond(range);
+    words = (diamond.size + 63) >>> 6;
+    from = new long[map.r * map.c * words];
+    to = new long[map.r * map.c * words];
+    prepare();
+    
+    // from-masks first; to-masks are then read off them, so every
+    // pair of cells is checked once and each task writes only the
+    // masks of its own rows
+    if (parallel) {
+      int grain = Math.max(1, BAND_CELLS / Math.max(1, map.c));
+      ForkJoinPool.commonPool().invoke(new Band(0, map.r, grain, false));
+      ForkJoinPool.commonPool().invoke(new Band(0, map.r, grain, true));
+    }
+    else {
+      fillRows(0, map.r, false);
+      fillRows(0, map.r, true);
+    }
+  }
+  
+  /** Fills the from-masks (or the to-masks, if <transpose>) of rows
+   * <lo> .. <hi>-1, splitting into bands of at most <grain> rows. */
+  private class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    final int lo, hi, grain;
+    final boolean transpose;
+    
+    Band (int lo0, int hi0, int grain0, boolean transpose0) {
+      lo = lo0;
+      hi = hi0;
+      grain = grain0;
+      transpose = transpose0;
+    }
+    
+    @Override
+    protected void compute () {
+      if (hi - lo > grain) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new Band(lo, mid, grain, transpose), new Band(mid, hi, grain, transpose));
+        return;
+      }
+      fillRows(lo, hi, transpose);
+    }
+  }
+  
+  /** Fills the from-masks (or the to-masks, if <transpose>) of rows
+   * <lo> .. <hi>-1. */
+  private void fillRows (int lo, int hi, boolean transpose) {
+    for (int i = lo; i < hi; i++) {
+      for (int j = 0; j < map.c; j++) {
+        if (transpose) {
+          fillTo(i, j);
+        }
+        else {
+          fillFrom(i, j);
+        }
+      }
+    }
+  }
+  
+  /** Sets the from-mask of [pos_r, pos_c], which is still empty. By
+   * default checks '_canSee' for each offset; subclasses that find all
+   * visible cells at once may override it. Called concurrently for
+   * different cells by the parallel build. */
+  protected void fillFrom (int pos_r, int pos_c) {
+    int baseA = base(pos_r, pos_c);
+    for (int k = 0; k < diamond.size; k++) {
+      int br = pos_r + diamond.dr(k);
+      int bc = pos_c + diamond.dc(k);
+      if (!map.outOfBounds(br, bc) && _canSee(pos_r, pos_c, br, bc)) {
+        setBit(from, baseA, k, true);
+      }
+    }
+  }
+  
+  /** Sets the to-mask of [pos_r, pos_c], which is still empty, from the
+   * from-masks around it. */
+  protected void fillTo (int pos_r, int pos_c) {
+    int baseA = base(pos_r, pos_c);
+    for (int k = 0; k < diamond.size; k++) {
+      int br = pos_r + diamond.dr(k);
+      int bc = pos_c + diamond.dc(k);
+      if (map.outOfBounds(br, bc)) {
+        continue;
+      }
+      int o = diamond.opposite(k);
+      if ((from[base(br, bc) + (o >>> 6)] & (1L << o)) != 0) {
+        setBit(to, baseA, k, true);
+      }
+    }
+  }
+  
+  /** Returns true if A can see B, false otherwise. For internal use only. */
+  abstract protected boolean _canSee (Position A, Position B) ;
+  
+  /** Same as '_canSee(Position, Position)'; subclasses may override it
+   * to avoid allocating positions. */
+  protected boolean _canSee (int r1, int c1, int r2, int c2) {
+    return _canSee(new Position(r1, c1), new Position(r2, c2));
+  }
+  
+  /** Called by the constructor before the graph is built, when the
+   * fields of subclasses are not initialized yet. Subclasses set up
+   * whatever '_canSee' needs here. */
+  protected void prepare () {
+  }
+  
+  /** Returns the index of the first word of the mask of cell [r, c]. */
+  protected int base (int pos_r, int pos_c) {
+    return (pos_r * map.c + pos_c) * words;
+  }
+  
+  /** Sets or clears bit <k> in the mask starting at <base>. */
+  private static void setBit (long[] masks, int base, int k, boolean value) {
+    int w = base + (k >>> 6);
+    if (value) {
+      masks[w] |= 1L << k;
+    }
+    else {
+      masks[w] &= ~(1L << k);
+    }
+  }
+  
+  /** A convenience method for automatically updating 'from' and 'to'. */
+  private void calcVis (Position A, Position B) {
+    if (map.outOfBounds(A) || map.outOfBounds(B)) {
+      return;
+    }
+    if (_canSee(A, B)) {
+      int k = diamond.indexOf(B.r - A.r, B.c - A.c);
+      setBit(from, base(A.r, A.c), k, true);
+      setBit(to, base(B.r, B.c), diamond.opposite(k), true);
+    }
+  }
+  
+  @Override
+  public Visibility freeze () {
+    frozen = true;
+    return this;
+  }
+  
+  @Override
+  public void recalculate (Position A) {
+    if (frozen) {
+      throw new IllegalStateException("cannot recalculate a frozen visibility graph");
+    }
+    if (map.outOfBounds(A)) {
+      return;
+    }
+    // first, clear previous info
+    int baseA = base(A.r, A.c);
+    for (int w = 0; w < words; w++) {
+      from[baseA + w] = 0;
+      to[baseA + w] = 0;
+    }
+    for (int k = 0; k < diamond.size; k++) {
+      int br = A.r + diamond.dr(k);
+      int bc = A.c + diamond.dc(k);
+      if (map.outOfBounds(br, bc)) {
+        continue;
+      }
+      int baseB = base(br, bc);
+      setBit(from, baseB, diamond.opposite(k), false);
+      setBit(to, baseB, diamond.opposite(k), false);
+    }
+    // now, calculate new info
+    for (Position B : Visibility.getSight(A, range)) {
+      calcVis(A, B);
+      calcVis(B, A);
+    }
+  }
+  
+  @Override
+  public Diamond getDiamond () {
+    return diamond;
+  }
+  
+  @Override
+  public boolean canSee (int r1, int c1, int r2, int c2) {
+    if (map.outOfBounds(r1, c1) || map.outOfBounds(r2, c2)) {
+      return false;
+    }
+    int k = diamond.indexOf(r2 - r1, c2 - c1);
+    if (k < 0) {
+      return false;
+    }
+    return (from[base(r1, c1) + (k >>> 6)] & (1L << k)) != 0;
+  }
+  
+  @Override
+  public int nextVisible (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(from, base(pos_r, pos_c), words, k);
+  }
+  
+  @Override
+  public int nextSeer (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(to, base(pos_r, pos_c), words, k);
+  }
+  
+  /** Collects the cells whose offsets are set in the mask of [r, c]. */
+  private Set<Position> collect (long[] masks, Position pos) {
+    if (map.outOfBounds(pos)) {
+      return null;
+    }
+    int base = base(pos.r, pos.c);
+    return Masks.collect(diamond, pos, k -> Masks.nextBit(masks, base, words, k));
+  }
+  
+  @Override
+  public Set<Position> visibleFrom (Position pos) {
+    return collect(from, pos);
+  }
+  
+  @Override
+  public Set<Position> canSee (Position pos) {
+    return collect(to, pos);
+  }
+  
+  @Override
+  public String toString () {
+    StringBuilder bui = new StringBuilder();
+    appendRows(bui, 0, map.r, map.c);
+    return bui.toString();
+  }
+}
@@ -0,0 +1,59 @@
+package server.game.map;
+
+import java.util.*;
+
+
+/** The set of offsets within manhattan distance <range> of the origin,
+ * numbered 0, 1, ... in row-major order (the same order in which
+ * 'Visibility.getSight' lists them). The number of an offset is used
+ * as a bit index in dense visibility masks. */
+public class Diamond {
+  public final int range, size;
+  protected final int[] dr, dc;
+  protected final int[] index; // offset number for each cell of the bounding square, -1 outside
+  
+  /** Constructs the diamond of the given range. */
+  public Diamond (int range0) {
+    range = range0;
+    int side = 2 * range + 1;
+    size = 2 * range * (range + 1) + 1;
+    dr = new int[size];
+    dc = new int[size];
+    index = new int[side * side];
+    Arrays.fill(index, -1);
+    
+    int k = 0;
+    for (int i = -range; i <= range; i++) {
+      int lim = range - Math.abs(i);
+      for (int j = -lim; j <= lim; j++) {
+        dr[k] = i;
+        dc[k] = j;
+        index[(i + range) * side + (j + range)] = k;
+        k++;
+      }
+    }
+  }
+  
+  /** Returns the row offset of offset number <k>. */
+  public int dr (int k) {
+    return dr[k];
+  }
+  /** Returns the column offset of offset number <k>. */
+  public int dc (int k) {
+    return dc[k];
+  }
+  
+  /** Returns the number of offset [ddr, ddc], or -1 if it lies outside
+   * of the diamond. */
+  public int indexOf (int ddr, int ddc) {
+    if (Math.abs(ddr) + Math.abs(ddc) > range) {
+      return -1;
+    }
+    return index[(ddr + range) * (2 * range + 1) + (ddc + range)];
+  }
+  
+  /** Returns the number of the offset opposite to offset number <k>. */
+  public int opposite (int k) {
+    return size - 1 - k;
+  }
+}
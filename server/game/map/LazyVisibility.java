@@ -0,0 +1,314 @@
+package server.game.map;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/** A linear visibility graph (same as 'LinearVisibility') that is not
+ * built up front. The map is split into square tiles, and the masks of
+ * a tile are computed when some cell of the tile is first queried. At
+ * most <maxTiles> tiles are kept, the least recently used ones are
+ * dropped and computed again if needed. So the memory depends on where
+ * the units are, not on the size of the map.
+ *
+ * Tiles do not change once computed; 'recalculate' just drops the
+ * tiles whose cells may see or be seen through the changed cell. Hence
+ * the graph is always the same as a 'LinearVisibility' built from
+ * scratch on the current terrain. Queries may run concurrently: a tile
+ * is computed without holding any lock (two threads may both compute
+ * it, with the same result), only dropping tiles is serialized. They
+ * must not run concurrently with 'recalculate'.
+ *
+ * Listing the whole graph ('toString', 'appendRows') computes the
+ * tiles a band of rows at a time and does not keep them, so it neither
+ * fills the cache nor holds the masks of the whole map. */
+public class LazyVisibility implements Visibility {
+  public static final int SHIFT = 5;
+  public static final int SIDE = 1 << SHIFT; // tile side, in cells
+  
+  /** Maps with more cells get a lazy graph by default, see
+   * 'Visibility.of'. */
+  public static final long LAZY_CELLS = 1L << 22;
+  /** Default bound of the cache, about 16 MB of masks at sight 3. */
+  public static final int MAX_TILES = 1024;
+  
+  /** The masks of the cells of one tile, laid out like those of
+   * 'AbstractVisibility', row by row within the tile. */
+  protected static class Tile {
+    final int key;
+    final long[] from, to;
+    volatile long used; // the value of 'clock' when last queried
+    volatile boolean dropped; // no longer in the cache
+    
+    Tile (int key0, int words) {
+      key = key0;
+      from = new long[SIDE * SIDE * words];
+      to = new long[SIDE * SIDE * words];
+    }
+  }
+  
+  protected Terrain map;
+  protected int range;
+  protected Diamond diamond;
+  protected int words;
+  protected Rays rays;
+  protected int tilesC; // tiles per row of the map
+  protected int maxTiles;
+  protected ConcurrentHashMap<Integer, Tile> tiles;
+  protected volatile Tile last; // the tile of the previous query
+  protected volatile long clock; // advanced by each miss, orders the tiles by use
+  protected final Object dropLock; // serializes dropping tiles
+  protected volatile boolean frozen;
+  
+  protected LongAdder hits, misses, evictions;
+  
+  /** Constructs a lazy visibility graph for the given Terrain and range,
+   * keeping at most <maxTiles0> tiles. */
+  public LazyVisibility (Terrain map0, int range0, int maxTiles0) {
+    map = map0;
+    range = range0;
+    diamond = new Diamond(range);
+    words = (diamond.size + 63) >>> 6;
+    rays = Rays.of(range);
+    tilesC = (map.c + SIDE - 1) >>> SHIFT;
+    maxTiles = Math.max(1, maxTiles0);
+    tiles = new ConcurrentHashMap<Integer, Tile>();
+    dropLock = new Object();
+    hits = new LongAdder();
+    misses = new LongAdder();
+    evictions = new LongAdder();
+  }
+  
+  @Override
+  public Visibility freeze () {
+    frozen = true;
+    return this;
+  }
+  
+  /** Returns the number of queries answered from a cached tile. */
+  public long getHits () {
+    return hits.sum();
+  }
+  /** Returns the number of queries for which a tile had to be computed. */
+  public long getMisses () {
+    return misses.sum();
+  }
+  /** Returns the number of tiles dropped to keep the cache bounded. */
+  public long getEvictions () {
+    return evictions.sum();
+  }
+  /** Returns the number of tiles currently kept. */
+  public int tileCount () {
+    return tiles.size();
+  }
+  
+  /** Returns the tile of cell [pos_r, pos_c], which must be on the map,
+   * computing it if needed. */
+  protected Tile tileOf (int pos_r, int pos_c) {
+    int key = (pos_r >>> SHIFT) * tilesC + (pos_c >>> SHIFT);
+    Tile t = last;
+    if (t == null || t.key != key || t.dropped) {
+      t = tiles.get(key);
+    }
+    if (t != null) {
+      hits.increment();
+      touch(t);
+      if (t != last) {
+        last = t;
+      }
+      return t;
+    }
+    misses.increment();
+    t = compute(key);
+    clock++; // not atomic: a lost increment just makes some tiles equally old
+    touch(t);
+    Tile other = tiles.putIfAbsent(key, t);
+    if (other != null) { // computed meanwhile by another thread
+      t = other;
+    }
+    else
+    if (tiles.size() > maxTiles) {
+      evict();
+    }
+    last = t;
+    return t;
+  }
+  
+  /** Marks <t> as used now. Tiles used between the same two misses are
+   * equally old, so most hits do not write anything. */
+  private void touch (Tile t) {
+    long now = clock;
+    if (t.used != now) {
+      t.used = now;
+    }
+  }
+  
+  /** Drops the least recently used tiles until at most <maxTiles> are
+   * left. Only called on misses, which cost far more than the scan. */
+  private void evict () {
+    synchronized (dropLock) {
+      while (tiles.size() > maxTiles) {
+        Tile oldest = null;
+        for (Tile t : tiles.values()) {
+          if (oldest == null || t.used < oldest.used) {
+            oldest = t;
+          }
+        }
+        drop(oldest.key);
+        evictions.increment();
+      }
+    }
+  }
+  
+  /** Removes tile <key> from the cache, if there. */
+  private void drop (int key) {
+    Tile t = tiles.remove(key);
+    if (t != null) {
+      t.dropped = true; // in case it is still 'last'
+    }
+  }
+  
+  /** Computes the masks of all cells of tile <key>. */
+  protected Tile compute (int key) {
+    Tile t = new Tile(key, words);
+    int r0 = (key / tilesC) << SHIFT;
+    int c0 = (key % tilesC) << SHIFT;
+    for (int i = r0; i < Math.min(r0 + SIDE, map.r); i++) {
+      for (int j = c0; j < Math.min(c0 + SIDE, map.c); j++) {
+        int base = offset(i, j);
+        for (int k = 0; k < diamond.size; k++) {
+          int br = i + diamond.dr(k);
+          int bc = j + diamond.dc(k);
+          if (map.outOfBounds(br, bc)) {
+            continue;
+          }
+          if (rays.lineOfSight(map, i, j, br, bc)) {
+            t.from[base + (k >>> 6)] |= 1L << k;
+          }
+          if (rays.lineOfSight(map, br, bc, i, j)) {
+            t.to[base + (k >>> 6)] |= 1L << k;
+          }
+        }
+      }
+    }
+    return t;
+  }
+  
+  /** Returns the index of the first word of the mask of cell [r, c]
+   * within its tile. */
+  protected int offset (int pos_r, int pos_c) {
+    return (((pos_r & (SIDE - 1)) << SHIFT) | (pos_c & (SIDE - 1))) * words;
+  }
+  
+  @Override
+  public Diamond getDiamond () {
+    return diamond;
+  }
+  
+  @Override
+  public boolean canSee (int r1, int c1, int r2, int c2) {
+    if (map.outOfBounds(r1, c1) || map.outOfBounds(r2, c2)) {
+      return false;
+    }
+    int k = diamond.indexOf(r2 - r1, c2 - c1);
+    if (k < 0) {
+      return false;
+    }
+    return (tileOf(r1, c1).from[offset(r1, c1) + (k >>> 6)] & (1L << k)) != 0;
+  }
+  
+  @Override
+  public int nextVisible (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(tileOf(pos_r, pos_c).from, offset(pos_r, pos_c), words, k);
+  }
+  
+  @Override
+  public int nextSeer (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(tileOf(pos_r, pos_c).to, offset(pos_r, pos_c), words, k);
+  }
+  
+  /** Collects the cells whose offsets are set in the mask of <pos>. */
+  private Set<Position> collect (boolean seers, Position pos) {
+    if (map.outOfBounds(pos)) {
+      return null;
+    }
+    Tile t = tileOf(pos.r, pos.c);
+    long[] masks = (seers ? t.to : t.from);
+    int base = offset(pos.r, pos.c);
+    return Masks.collect(diamond, pos, k -> Masks.nextBit(masks, base, words, k));
+  }
+  
+  @Override
+  public Set<Position> visibleFrom (Position pos) {
+    return collect(false, pos);
+  }
+  
+  @Override
+  public Set<Position> canSee (Position pos) {
+    return collect(true, pos);
+  }
+  
+  /** Drops the tiles of all cells within range of <A>: the line of
+   * sight between two cells can only pass through A if both are that
+   * close to it. */
+  @Override
+  public void recalculate (Position A) {
+    if (frozen) {
+      throw new IllegalStateException("cannot recalculate a frozen visibility graph");
+    }
+    if (map.outOfBounds(A)) {
+      return;
+    }
+    int tr0 = Math.max(0, A.r - range) >>> SHIFT;
+    int tr1 = Math.min(map.r - 1, A.r + range) >>> SHIFT;
+    int tc0 = Math.max(0, A.c - range) >>> SHIFT;
+    int tc1 = Math.min(map.c - 1, A.c + range) >>> SHIFT;
+    synchronized (dropLock) {
+      for (int i = tr0; i <= tr1; i++) {
+        for (int j = tc0; j <= tc1; j++) {
+          drop(i * tilesC + j);
+        }
+      }
+    }
+  }
+  
+  /** Lists the rows a band of tiles at a time, taking the tiles from the
+   * cache if they are there and computing them otherwise, without
+   * caching them. <cols> must be the width of the map. */
+  @Override
+  public void appendRows (StringBuilder bui, int lo, int hi, int cols) {
+    Tile[] band = new Tile[tilesC];
+    int bandRow = -1;
+    for (int i = lo; i < hi; i++) {
+      if ((i >>> SHIFT) != bandRow) {
+        bandRow = i >>> SHIFT;
+        Arrays.fill(band, null);
+      }
+      for (int j = 0; j < cols; j++) {
+        int tc = j >>> SHIFT;
+        if (band[tc] == null) {
+          int key = bandRow * tilesC + tc;
+          Tile t = tiles.get(key);
+          band[tc] = (t != null ? t : compute(key));
+        }
+        long[] masks = band[tc].from;
+        int base = offset(i, j);
+        Masks.appendLine(bui, diamond, i, j, k -> Masks.nextBit(masks, base, words, k));
+      }
+    }
+  }
+  
+  @Override
+  public String toString () {
+    StringBuilder bui = new StringBuilder();
+    appendRows(bui, 0, map.r, map.c);
+    return bui.toString();
+  }
+}
@@ -8,19 +8,33 @@ import java.util.*;
  * the real world. This, however, leads to quite hard to understand
  * code and mechanics. */
 public class LinearVisibility extends AbstractVisibility {
+  protected Rays rays; // set in 'prepare', before the graph is built
+  
   public LinearVisibility (Terrain map0, int range0) {
     super(map0, range0);
   }
+  public LinearVisibility (Terrain map0, int range0, boolean parallel) {
+    super(map0, range0, parallel);
+  }
+  
+  @Override
+  protected void prepare () {
+    rays = Rays.of(range);
+  }
   
   @Override
   protected boolean _canSee (Position A, Position B) {
-    if (map.outOfBounds(A) || map.outOfBounds(B)) {
-      return false;
-    }
-    if (!lineOfSight(between(A, B), map)) {
+    return _canSee(A.r, A.c, B.r, B.c);
+  }
+  
+  /** Same as 'lineOfSight(between(A, B), map)', but walks the ray
+   * template of offset B - A, so it does not allocate. */
+  @Override
+  protected boolean _canSee (int r1, int c1, int r2, int c2) {
+    if (map.outOfBounds(r1, c1) || map.outOfBounds(r2, c2)) {
       return false;
     }
-    return true;
+    return rays.lineOfSight(map, r1, c1, r2, c2);
   }
   
   /** Compares values num1/denom1 and num2/denom2. Returns 1 if the
@@ -0,0 +1,110 @@
+package server.game.map;
+
+import java.nio.*;
+import java.util.*;
+
+
+/** A read-only visibility graph whose masks are stored outside of the
+ * heap, usually in a memory-mapped map bundle (see 'MapBundle'). The
+ * masks have the same layout as those of 'AbstractVisibility': for each
+ * cell, <words> longs of the from-mask, and separately <words> longs of
+ * the to-mask, with bits numbered by the offsets of the sight diamond.
+ * Nothing is computed or copied when it is constructed, pages of the
+ * masks are loaded only when they are queried. */
+public class MappedVisibility implements Visibility {
+  protected Terrain map;
+  protected Diamond diamond;
+  protected int words;
+  protected LongBuffer from, to;
+  
+  /** Constructs a visibility graph for terrain <map0> with the given
+   * range, from already computed masks. */
+  public MappedVisibility (Terrain map0, int range, LongBuffer from0, LongBuffer to0) {
+    map = map0;
+    diamond = new Diamond(range);
+    words = (diamond.size + 63) >>> 6;
+    from = from0;
+    to = to0;
+  }
+  
+  /** Returns the number of longs of each mask for the given range. */
+  public static int wordsFor (int range) {
+    return (new Diamond(range).size + 63) >>> 6;
+  }
+  
+  /** Returns the index of the first word of the mask of cell [r, c]. */
+  protected int base (int pos_r, int pos_c) {
+    return (pos_r * map.c + pos_c) * words;
+  }
+  
+  @Override
+  public Diamond getDiamond () {
+    return diamond;
+  }
+  
+  @Override
+  public boolean canSee (int r1, int c1, int r2, int c2) {
+    if (map.outOfBounds(r1, c1) || map.outOfBounds(r2, c2)) {
+      return false;
+    }
+    int k = diamond.indexOf(r2 - r1, c2 - c1);
+    if (k < 0) {
+      return false;
+    }
+    return (from.get(base(r1, c1) + (k >>> 6)) & (1L << k)) != 0;
+  }
+  
+  @Override
+  public int nextVisible (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(from, base(pos_r, pos_c), words, k);
+  }
+  
+  @Override
+  public int nextSeer (int pos_r, int pos_c, int k) {
+    if (map.outOfBounds(pos_r, pos_c)) {
+      return -1;
+    }
+    return Masks.nextBit(to, base(pos_r, pos_c), words, k);
+  }
+  
+  /** Collects the cells whose offsets are set in the mask of <pos>. */
+  private Set<Position> collect (LongBuffer masks, Position pos) {
+    if (map.outOfBounds(pos)) {
+      return null;
+    }
+    int base = base(pos.r, pos.c);
+    return Masks.collect(diamond, pos, k -> Masks.nextBit(masks, base, words, k));
+  }
+  
+  @Override
+  public Set<Position> visibleFrom (Position pos) {
+    return collect(from, pos);
+  }
+  
+  @Override
+  public Set<Position> canSee (Position pos) {
+    return collect(to, pos);
+  }
+  
+  /** The masks are read-only. */
+  @Override
+  public void recalculate (Position pos) {
+    throw new IllegalStateException("memory-mapped visibility graph is read-only");
+  }
+  
+  /** Read-only already, see 'recalculate'. */
+  @Override
+  public Visibility freeze () {
+    return this;
+  }
+  
+  @Override
+  public String toString () {
+    StringBuilder bui = new StringBuilder();
+    appendRows(bui, 0, map.r, map.c);
+    return bui.toString();
+  }
+}
@@ -0,0 +1,74 @@
+package server.game.map;
+
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+
+/** What the dense visibility graphs have in common: bitmasks of <words>
+ * longs over the offsets of a sight diamond, one per cell, read with
+ * 'nextBit' whether they are on the heap or memory-mapped. */
+final class Masks {
+  private Masks () {
+  }
+  
+  /** Returns the index of the first set bit that is >= <k> in the mask
+   * of <words> longs starting at <base>, or -1 if there is none. */
+  static int nextBit (long[] masks, int base, int words, int k) {
+    int w = k >>> 6;
+    if (k < 0 || w >= words) {
+      return -1;
+    }
+    long bits = masks[base + w] & (-1L << k);
+    while (bits == 0) {
+      w++;
+      if (w == words) {
+        return -1;
+      }
+      bits = masks[base + w];
+    }
+    return (w << 6) + Long.numberOfTrailingZeros(bits);
+  }
+  
+  /** Same as above, for masks outside of the heap. */
+  static int nextBit (LongBuffer masks, int base, int words, int k) {
+    int w = k >>> 6;
+    if (k < 0 || w >= words) {
+      return -1;
+    }
+    long bits = masks.get(base + w) & (-1L << k);
+    while (bits == 0) {
+      w++;
+      if (w == words) {
+        return -1;
+      }
+      bits = masks.get(base + w);
+    }
+    return (w << 6) + Long.numberOfTrailingZeros(bits);
+  }
+  
+  /** Collects the cells <pos> + offset <k> of <diamond> for all <k>
+   * that <next> gives: next(k) is the smallest set offset >= k, or -1. */
+  static Set<Position> collect (Diamond diamond, Position pos, IntUnaryOperator next) {
+    Set<Position> res = new LinkedHashSet<Position>();
+    for (int k = next.applyAsInt(0); k >= 0; k = next.applyAsInt(k + 1)) {
+      res.add(new Position(pos.r + diamond.dr(k), pos.c + diamond.dc(k)));
+    }
+    return res;
+  }
+  
+  /** Appends the line of cell [pos_r, pos_c] to a listing of the graph
+   * (see 'Visibility.appendRows'): the number of cells it sees, then
+   * the cells, with offsets given by <next> like for 'collect'. */
+  static void appendLine (StringBuilder bui, Diamond diamond, int pos_r, int pos_c, IntUnaryOperator next) {
+    int count = 0;
+    for (int k = next.applyAsInt(0); k >= 0; k = next.applyAsInt(k + 1)) {
+      count++;
+    }
+    bui.append(count);
+    for (int k = next.applyAsInt(0); k >= 0; k = next.applyAsInt(k + 1)) {
+      bui.append(' ').append(pos_r + diamond.dr(k)).append(' ').append(pos_c + diamond.dc(k));
+    }
+    bui.append('\n');
+  }
+}
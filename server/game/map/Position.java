@@ -57,6 +57,29 @@ public class Position {
   
   @Override
   public int hashCode () {
-    return toString().hashCode();
+    return 31 * r + c;
+  }
+  
+  /** Packs the position [r, c] into a single long, to be used as a key
+   * or passed around without allocating. Works for any pair of ints,
+   * including positions out of the map. */
+  public static long pack (int r, int c) {
+    return ((long)r << 32) | (c & 0xffffffffL);
+  }
+  public long pack () {
+    return pack(r, c);
+  }
+  
+  /** Returns the row of a packed position. */
+  public static int unpackR (long key) {
+    return (int)(key >> 32);
+  }
+  /** Returns the column of a packed position. */
+  public static int unpackC (long key) {
+    return (int)key;
+  }
+  /** Returns the manhattan distance between two packed positions. */
+  public static int dist (long a, long b) {
+    return Math.abs(unpackR(a) - unpackR(b)) + Math.abs(unpackC(a) - unpackC(b));
   }
 }
@@ -0,0 +1,80 @@
+package server.game.map;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/** The cells crossed by a line of sight, for each offset of a sight
+ * diamond. The ray of an offset does not depend on where it starts, so
+ * 'between' is run once per offset and the cells are stored relative
+ * to the start: the ray of offset <k> is cells start[k] .. start[k+1]-1
+ * of arrays dr, dc. See 'VisibilityCheck' for the parity check against
+ * 'between' and 'lineOfSight'. */
+class Rays {
+  private static final ConcurrentMap<Integer, Rays> cache = new ConcurrentHashMap<Integer, Rays>();
+  
+  final Diamond diamond;
+  final int[] start;
+  final int[] dr, dc;
+  
+  /** Returns the ray templates of the diamond of the given range. */
+  static Rays of (int range) {
+    return cache.computeIfAbsent(range, Rays::new);
+  }
+  
+  private Rays (int range) {
+    diamond = new Diamond(range);
+    Position origin = new Position(0, 0);
+    List<List<Position>> paths = new ArrayList<List<Position>>();
+    int total = 0;
+    for (int k = 0; k < diamond.size; k++) {
+      List<Position> path = LinearVisibility.between(origin, new Position(diamond.dr(k), diamond.dc(k)));
+      paths.add(path);
+      total += path.size();
+    }
+    start = new int[diamond.size + 1];
+    dr = new int[total];
+    dc = new int[total];
+    int m = 0;
+    for (int k = 0; k < diamond.size; k++) {
+      start[k] = m;
+      for (Position pos : paths.get(k)) {
+        dr[m] = pos.r;
+        dc[m] = pos.c;
+        m++;
+      }
+    }
+    start[diamond.size] = m;
+  }
+  
+  /** Same as 'LinearVisibility.lineOfSight(between(A, B), map)' for
+   * A = [r1, c1] and B = [r2, c2], both on the map. */
+  boolean lineOfSight (Terrain map, int r1, int c1, int r2, int c2) {
+    int k = diamond.indexOf(r2 - r1, c2 - c1);
+    if (k < 0) { // longer than the range, no template
+      return LinearVisibility.lineOfSight(LinearVisibility.between(new Position(r1, c1), new Position(r2, c2)), map);
+    }
+    int first = start[k];
+    int n = start[k + 1] - first;
+    if (n > 2) { // non-adjacent forests are obscured
+      if (map.terrainAt(r2, c2) == Terrain.Type.FOREST) {
+        return false;
+      }
+    }
+    int h_start = map.heightAt(r1, c1);
+    int h_target = map.heightAt(r2, c2);
+    for (int i = 1; i < n - 1; i++) {
+      int pr = r1 + dr[first + i];
+      int pc = c1 + dc[first + i];
+      int hi = map.heightAt(pr, pc);
+      if (map.terrainAt(pr, pc) == Terrain.Type.FOREST) { // forests artificially increase height by 1
+        hi++;
+      }
+      double max_h = h_start + (h_target - h_start) * (double)i / (n - 1);
+      if (hi > max_h) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
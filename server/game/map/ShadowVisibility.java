@@ -0,0 +1,154 @@
+package server.game.map;
+
+import java.util.*;
+
+
+/** A visibility graph computed by symmetric recursive shadowcasting.
+ * Instead of checking a line of sight for each pair of cells, we scan
+ * the sight diamond of a cell row by row away from it in each of the
+ * four directions, and keep track of the slopes that are still lit.
+ * That is O(range^2) per cell instead of O(range^3).
+ *
+ * This is not the model of 'LinearVisibility'. A cell casts a shadow if
+ * it is higher than the viewer (forests count as 1 higher), and forests
+ * are hidden unless adjacent, but the height of the target is not taken
+ * into account: a target behind such a cell is hidden however high it
+ * is, where the line of sight of 'LinearVisibility' rises towards it,
+ * and low ground behind a cell of middle height is seen, where that
+ * line sinks towards it. On random maps the two disagree on several
+ * percent of the pairs in range, see 'VisibilityBenchmark'. So it is
+ * not the default: a game opts in (the server's 'visibility=shadow')
+ * for its cheaper build at longer sight ranges. */
+public class ShadowVisibility extends AbstractVisibility {
+  public ShadowVisibility (Terrain map0, int range0) {
+    super(map0, range0);
+  }
+  public ShadowVisibility (Terrain map0, int range0, boolean parallel) {
+    super(map0, range0, parallel);
+  }
+  
+  /** Returns the height of cell [pos_r, pos_c] for casting shadows. */
+  protected int shadowHeight (int pos_r, int pos_c) {
+    int h = map.heightAt(pos_r, pos_c);
+    if (map.terrainAt(pos_r, pos_c) == Terrain.Type.FOREST) { // forests artificially increase height by 1
+      h++;
+    }
+    return h;
+  }
+  
+  @Override
+  protected void fillFrom (int pos_r, int pos_c) {
+    cast(pos_r, pos_c, from, base(pos_r, pos_c));
+  }
+  
+  /** The graph is built and recalculated a whole mask at a time, so it
+   * is always up to date; this just reads it. */
+  @Override
+  protected boolean _canSee (Position A, Position B) {
+    return canSee(A.r, A.c, B.r, B.c);
+  }
+  
+  /** Casts again from every cell within range of <A>, since the shadow
+   * of A falls on what any of them sees, and then sets again the
+   * to-masks of all cells these may see. */
+  @Override
+  public void recalculate (Position A) {
+    if (frozen) {
+      throw new IllegalStateException("cannot recalculate a frozen visibility graph");
+    }
+    if (map.outOfBounds(A)) {
+      return;
+    }
+    for (int k = 0; k < diamond.size; k++) {
+      int br = A.r + diamond.dr(k);
+      int bc = A.c + diamond.dc(k);
+      if (!map.outOfBounds(br, bc)) {
+        int base = base(br, bc);
+        Arrays.fill(from, base, base + words, 0);
+        cast(br, bc, from, base);
+      }
+    }
+    for (int i = Math.max(0, A.r - 2 * range); i <= Math.min(map.r - 1, A.r + 2 * range); i++) {
+      int lim = 2 * range - Math.abs(i - A.r);
+      for (int j = Math.max(0, A.c - lim); j <= Math.min(map.c - 1, A.c + lim); j++) {
+        int base = base(i, j);
+        Arrays.fill(to, base, base + words, 0);
+        fillTo(i, j);
+      }
+    }
+  }
+  
+  /** Sets bits of the cells visible from [pos_r, pos_c] in the mask at
+   * <masks>[<base>..]. */
+  protected void cast (int pos_r, int pos_c, long[] masks, int base) {
+    int eye = map.heightAt(pos_r, pos_c);
+    reveal(masks, base, 0, 0);
+    for (int quadrant = 0; quadrant < 4; quadrant++) {
+      scan(pos_r, pos_c, eye, quadrant, 1, -1, 1, 1, 1, masks, base);
+    }
+  }
+  
+  /** Returns the row offset of cell <col> of row <depth> of <quadrant>
+   * (0 north, 1 east, 2 south, 3 west). */
+  private static int rowOffset (int quadrant, int depth, int col) {
+    switch (quadrant) {
+      case 0: return -depth;
+      case 2: return depth;
+      default: return col;
+    }
+  }
+  private static int colOffset (int quadrant, int depth, int col) {
+    switch (quadrant) {
+      case 1: return depth;
+      case 3: return -depth;
+      default: return col;
+    }
+  }
+  
+  /** Sets the bit of offset [ddr, ddc], if it is within the diamond. */
+  private void reveal (long[] masks, int base, int ddr, int ddc) {
+    int k = diamond.indexOf(ddr, ddc);
+    if (k >= 0) {
+      masks[base + (k >>> 6)] |= 1L << k;
+    }
+  }
+  
+  /** Scans row <depth> of <quadrant>, lit between slopes sn/sd and
+   * en/ed (denominators positive), and the rows behind it. */
+  private void scan (int pos_r, int pos_c, int eye, int quadrant, int depth, int sn, int sd, int en, int ed, long[] masks, int base) {
+    if (depth > range) {
+      return;
+    }
+    // columns whose centre is lit: round(depth*start) .. round(depth*end),
+    // ties towards the inside
+    int lo = Math.floorDiv(2 * depth * sn + sd, 2 * sd);
+    int hi = -Math.floorDiv(-(2 * depth * en - ed), 2 * ed);
+    int prev = 0; // 0 none yet, 1 floor, 2 wall
+    for (int col = lo; col <= hi; col++) {
+      int ddr = rowOffset(quadrant, depth, col);
+      int ddc = colOffset(quadrant, depth, col);
+      int r = pos_r + ddr;
+      int c = pos_c + ddc;
+      boolean out = map.outOfBounds(r, c); // casts no shadow, is never revealed
+      boolean wall = !out && shadowHeight(r, c) > eye;
+      boolean symmetric = (long)col * sd >= (long)depth * sn && (long)col * ed <= (long)depth * en;
+      if (!out && (wall || symmetric)) {
+        boolean hidden = map.terrainAt(r, c) == Terrain.Type.FOREST && Math.abs(ddr) + Math.abs(ddc) > 1;
+        if (!hidden) { // non-adjacent forests are obscured
+          reveal(masks, base, ddr, ddc);
+        }
+      }
+      if (prev == 2 && !wall) { // the lit part starts at this cell's left edge
+        sn = 2 * col - 1;
+        sd = 2 * depth;
+      }
+      if (prev == 1 && wall) { // the lit part behind us ends at this wall
+        scan(pos_r, pos_c, eye, quadrant, depth + 1, sn, sd, 2 * col - 1, 2 * depth, masks, base);
+      }
+      prev = (wall ? 2 : 1);
+    }
+    if (prev == 1) {
+      scan(pos_r, pos_c, eye, quadrant, depth + 1, sn, sd, en, ed, masks, base);
+    }
+  }
+}
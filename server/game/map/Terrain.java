@@ -1,5 +1,6 @@
 package server.game.map;
 
+import java.nio.*;
 import java.util.*;
 
 
@@ -11,22 +12,31 @@ public class Terrain {
     PLAINS, FOREST, WATER, SENTINEL, FINISH_LINE
   }
   
+  /** Where the cells of a terrain are kept. */
+  public enum Storage {
+    HEAP, OFF_HEAP
+  }
+  
+  /** Maps with more cells are kept off-heap by default. */
+  public static final long OFF_HEAP_CELLS = 1L << 26;
+  /** Highest elevation a cell can have. */
+  public static final int MAX_HEIGHT = TerrainCells.MAX_HEIGHT;
+  
   public final int r, c;
-  protected Type[][] terrain;
-  protected int[][] elevation;
+  protected TerrainCells cells;
+  protected volatile boolean frozen; // frozen terrains may be shared between games
   
   /** Constructs an empty terrain with the given dimensions (plains
-   * everywhere, elevation 0). */
+   * everywhere, elevation 0). Very large terrains are kept off-heap. */
   public Terrain (int r0, int c0) {
+    this(r0, c0, (long)r0 * c0 > OFF_HEAP_CELLS ? Storage.OFF_HEAP : Storage.HEAP);
+  }
+  /** Constructs an empty terrain with the given dimensions, with its
+   * cells kept in <storage>. */
+  public Terrain (int r0, int c0, Storage storage) {
     r = r0;
     c = c0;
-    terrain = new Type[r][c];
-    for (int i = 0; i < r; i++) {
-      for (int j = 0; j < c; j++) {
-        terrain[i][j] = Type.PLAINS;
-      }
-    }
-    elevation = new int[r][c];
+    cells = new TerrainCells(r, c, storage == Storage.OFF_HEAP);
   }
   
   /** A randomly constructed terrain with elevations 0 or 1 and
@@ -37,40 +47,46 @@ public class Terrain {
       for (int j = 0; j < c; j++) {
         // determine elevation
         int h = rng.nextInt(2);
-        res.elevation[i][j] = h;
+        res.setHeight(i, j, h);
         
         // determine terrain type
         double roll = rng.nextDouble();
         if (roll < 0.3) {
-          res.terrain[i][j] = Type.FOREST;
+          res.setType(i, j, Type.FOREST);
         }
         else
         if (roll < 0.45 && h == 0) {
-          res.terrain[i][j] = Type.WATER;
+          res.setType(i, j, Type.WATER);
         }
       }
     }
     return res;
   }
   
-  /** Constructs the Terrain by reading from the provided Scanner. */
+  /** Constructs the Terrain by reading from the provided Scanner. Throws
+   * an InputMismatchException, like the Scanner does for a token that is
+   * not a number, for an elevation that is not within
+   * [0, 'MAX_HEIGHT'], as it cannot be stored. */
   public Terrain (Scanner sc) {
-    r = sc.nextInt();
-    c = sc.nextInt();
+    this(sc.nextInt(), sc.nextInt());
     
     // load terrains
-    terrain = new Type[r][c];
+    Type[] types = Type.values();
     for (int i = 0; i < r; i++) {
       for (int j = 0; j < c; j++) {
         int t = sc.nextInt();
-        terrain[i][j] = Type.values()[t];
+        setType(i, j, types[t]);
       }
     }
     // load elevations
-    elevation = new int[r][c];
     for (int i = 0; i < r; i++) {
       for (int j = 0; j < c; j++) {
-        elevation[i][j] = sc.nextInt();
+        try {
+          setHeight(i, j, sc.nextInt());
+        }
+        catch (IllegalArgumentException exc) {
+          throw new InputMismatchException(exc.getMessage());
+        }
       }
     }
   }
@@ -78,6 +94,51 @@ public class Terrain {
     this(new Scanner(str));
   }
   
+  /** Constructs the Terrain with <r0> rows and <c0> columns from the
+   * binary form in <buf>: a byte with the type of each cell, row by
+   * row, followed by a byte with the elevation of each cell. */
+  public Terrain (int r0, int c0, ByteBuffer buf) {
+    this(r0, c0);
+    Type[] types = Type.values();
+    for (int i = 0; i < r; i++) {
+      for (int j = 0; j < c; j++) {
+        setType(i, j, types[buf.get()]);
+      }
+    }
+    for (int i = 0; i < r; i++) {
+      for (int j = 0; j < c; j++) {
+        setHeight(i, j, buf.get());
+      }
+    }
+  }
+  
+  /** Sets the type of cell [pos_r, pos_c], which must be on the map. */
+  void setType (int pos_r, int pos_c, Type type) {
+    int cell = cells.get(pos_r, pos_c);
+    cells.set(pos_r, pos_c, TerrainCells.pack(type.ordinal(), TerrainCells.height(cell)));
+  }
+  
+  /** Sets the elevation of cell [pos_r, pos_c], which must be on the
+   * map. Throws an IllegalArgumentException if <h> cannot be stored. */
+  void setHeight (int pos_r, int pos_c, int h) {
+    if (h < 0 || h > TerrainCells.MAX_HEIGHT) {
+      throw new IllegalArgumentException(String.format("elevation %d at [%d, %d] is not within [0, %d]", h, pos_r, pos_c, TerrainCells.MAX_HEIGHT));
+    }
+    int cell = cells.get(pos_r, pos_c);
+    cells.set(pos_r, pos_c, TerrainCells.pack(TerrainCells.type(cell), h));
+  }
+  
+  /** Forbids any further changes of this terrain (see 'TerrainEditor'),
+   * so that it can be shared read-only by concurrent games. Returns
+   * this terrain. */
+  public Terrain freeze () {
+    frozen = true;
+    return this;
+  }
+  public boolean isFrozen () {
+    return frozen;
+  }
+  
   public boolean outOfBounds (int ra, int ca) {
     return (ra < 0 || ra >= r || ca < 0 || ca >= c);
   }
@@ -87,12 +148,14 @@ public class Terrain {
   
   /** Is used to check scoring condition. */
   public boolean inFinishLine (Position pos) {
-    return pos.r == r;
+    return inFinishLine(pos.r, pos.c);
   }
   public boolean inFinishLine (int pos_r, int pos_c) {
-    return inFinishLine(new Position(pos_r, pos_c));
+    return pos_r == r;
   }
   
+  private static final Type[] types = Type.values();
+  
   /** Returns the Terrain.Type at location [pos_r, pos_c]. If that is out
    * of bounds of the map, returns Type.SENTINEL */
   public Type terrainAt (int pos_r, int pos_c) {
@@ -102,7 +165,7 @@ public class Terrain {
       }
       return Type.SENTINEL;
     }
-    return terrain[pos_r][pos_c];
+    return types[TerrainCells.type(cells.get(pos_r, pos_c))];
   }
   public Type terrainAt (Position pos) {
     return terrainAt(pos.r, pos.c);
@@ -114,7 +177,7 @@ public class Terrain {
     if (outOfBounds(pos_r, pos_c)) {
       return 0;
     }
-    return elevation[pos_r][pos_c];
+    return TerrainCells.height(cells.get(pos_r, pos_c));
   }
   public int heightAt (Position pos) {
     return heightAt(pos.r, pos.c);
@@ -133,7 +196,7 @@ public class Terrain {
         if (j != 0) {
           bui.append(" ");
         }
-        bui.append(terrain[i][j].ordinal());
+        bui.append(terrainAt(i, j).ordinal());
       }
       bui.append("\n");
     }
@@ -144,10 +207,74 @@ public class Terrain {
         if (j != 0) {
           bui.append(" ");
         }
-        bui.append(elevation[i][j]);
+        bui.append(heightAt(i, j));
       }
       bui.append("\n");
     }
     return bui.toString();
   }
 }
+
+
+/** The cells of a terrain, one byte per cell: the terrain type in the
+ * low 3 bits, the elevation in the high 5 bits. Cells are laid out in
+ * square tiles of 64x64 cells (4 kB), so the neighbourhood of a cell
+ * is in a few cache lines whichever direction we look. Each row of
+ * tiles is a separate block, either a byte array or a direct buffer
+ * outside of the heap, so there is no limit of 2^31 cells. */
+class TerrainCells {
+  static final int SHIFT = 6;
+  static final int SIDE = 1 << SHIFT;
+  static final int MASK = SIDE - 1;
+  static final int MAX_HEIGHT = 31;
+  
+  protected byte[][] heap; // one block per row of tiles, or null
+  protected ByteBuffer[] direct; // the same, off-heap
+  
+  TerrainCells (int rows, int cols, boolean offHeap) {
+    int bands = (rows + MASK) >>> SHIFT;
+    int tiles = (cols + MASK) >>> SHIFT;
+    int block = tiles << (2 * SHIFT);
+    if (offHeap) {
+      direct = new ByteBuffer[bands];
+      for (int b = 0; b < bands; b++) {
+        direct[b] = ByteBuffer.allocateDirect(block);
+      }
+    }
+    else {
+      heap = new byte[bands][block];
+    }
+  }
+  
+  static int pack (int type, int height) {
+    return (height << 3) | type;
+  }
+  static int type (int cell) {
+    return cell & 7;
+  }
+  static int height (int cell) {
+    return cell >>> 3;
+  }
+  
+  /** Returns the index of cell [pos_r, pos_c] within its block. */
+  private static int offset (int pos_r, int pos_c) {
+    return ((pos_c >>> SHIFT) << (2 * SHIFT)) | ((pos_r & MASK) << SHIFT) | (pos_c & MASK);
+  }
+  
+  /** Returns the packed cell [pos_r, pos_c], as an unsigned value. */
+  int get (int pos_r, int pos_c) {
+    if (heap != null) {
+      return heap[pos_r >>> SHIFT][offset(pos_r, pos_c)] & 0xff;
+    }
+    return direct[pos_r >>> SHIFT].get(offset(pos_r, pos_c)) & 0xff;
+  }
+  
+  void set (int pos_r, int pos_c, int cell) {
+    if (heap != null) {
+      heap[pos_r >>> SHIFT][offset(pos_r, pos_c)] = (byte)cell;
+    }
+    else {
+      direct[pos_r >>> SHIFT].put(offset(pos_r, pos_c), (byte)cell);
+    }
+  }
+}
@@ -11,7 +11,7 @@ public class TerrainEditor {
   /** Loads the given terrain in the editor. */
   public TerrainEditor (Terrain t0) {
     t = t0;
-    v = new LinearVisibility(t, Constants.sight);
+    v = Visibility.of(t, Constants.sight);
   }
   /** Creates a new terrain with the given dimensions, with elevation 0
    * and plains everywhere. */
@@ -21,22 +21,31 @@ public class TerrainEditor {
   
   /** Sets the terrain at position <pos> to type <color>. */
   public void paint (Position pos, Terrain.Type color) {
+    checkNotFrozen();
     if (t.outOfBounds(pos)) {
       return;
     }
-    t.terrain[pos.r][pos.c] = color;
+    t.setType(pos.r, pos.c, color);
     v.recalculate(pos);
   }
   
   /** Sets the height at position <pos> to <h>. */
   public void setHeight (Position pos, int h) {
+    checkNotFrozen();
     if (t.outOfBounds(pos)) {
       return;
     }
-    t.elevation[pos.r][pos.c] = h;
+    t.setHeight(pos.r, pos.c, h);
     v.recalculate(pos);
   }
   
+  /** Throws an IllegalStateException if the terrain may not be changed. */
+  protected void checkNotFrozen () {
+    if (t.isFrozen()) {
+      throw new IllegalStateException("cannot edit a frozen terrain");
+    }
+  }
+  
   /** Returns the underlying terrain. */
   public Terrain getTerrain () {
     return t;
@@ -56,11 +65,11 @@ public class TerrainEditor {
     int lim_c = Math.min(c, t.c);
     for (int i = 0; i < lim_r; i++) {
       for (int j = 0; j < lim_c; j++) {
-        newt.terrain[i][j] = t.terrain[i][j];
-        newt.elevation[i][j] = t.elevation[i][j];
+        newt.setType(i, j, t.terrainAt(i, j));
+        newt.setHeight(i, j, t.heightAt(i, j));
       }
     }
     t = newt;
-    v = new LinearVisibility(t, Constants.sight);
+    v = Visibility.of(t, Constants.sight);
   }
 }
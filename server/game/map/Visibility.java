@@ -24,6 +24,23 @@ public interface Visibility {
     return canSee(new Position(pos_r, pos_c));
   }
   
+  /** Returns true if the cell [r1, c1] sees the cell [r2, c2]. Does
+   * not allocate. */
+  boolean canSee (int r1, int c1, int r2, int c2) ;
+  
+  /** Returns the diamond whose offset numbers are used by 'nextVisible'
+   * and 'nextSeer'. */
+  Diamond getDiamond () ;
+  
+  /** Returns the smallest offset number >= <k> of a cell visible from
+   * [pos_r, pos_c], or -1 if there is none. Together with 'getDiamond'
+   * this allows iterating over visible cells without allocation:
+   *   for (int k = v.nextVisible(r, c, 0); k >= 0; k = v.nextVisible(r, c, k+1)) */
+  int nextVisible (int pos_r, int pos_c, int k) ;
+  
+  /** Like 'nextVisible', but for cells that can see [pos_r, pos_c]. */
+  int nextSeer (int pos_r, int pos_c, int k) ;
+  
   /** Recalculates visibility at the given position. */
   void recalculate (Position pos) ;
   
@@ -31,6 +48,34 @@ public interface Visibility {
     recalculate(new Position(pos_r, pos_c));
   }
   
+  /** Forbids any further recalculation, so that the graph can be shared
+   * read-only by concurrent games. Returns this graph. */
+  Visibility freeze () ;
+  
+  /** Appends the lines of the cells of rows <lo> .. <hi>-1 of a map
+   * with <cols> columns: for each cell, the number of cells visible
+   * from it and then these cells. The lines of all rows are what
+   * 'toString' returns; listing a large map a few rows at a time keeps
+   * it out of memory. */
+  default void appendRows (StringBuilder bui, int lo, int hi, int cols) {
+    Diamond diamond = getDiamond();
+    for (int i = lo; i < hi; i++) {
+      for (int j = 0; j < cols; j++) {
+        int pos_r = i, pos_c = j;
+        Masks.appendLine(bui, diamond, i, j, k -> nextVisible(pos_r, pos_c, k));
+      }
+    }
+  }
+  
+  /** Returns a linear visibility graph of <map>: a 'LinearVisibility',
+   * or a 'LazyVisibility' if the map is too large to build all of it. */
+  static Visibility of (Terrain map, int range) {
+    if ((long)map.r * map.c > LazyVisibility.LAZY_CELLS) {
+      return new LazyVisibility(map, range, LazyVisibility.MAX_TILES);
+    }
+    return new LinearVisibility(map, range);
+  }
+  
   /** Returns a list of all positions that are in the sight radius
    * of the given position. */
   static List<Position> getSight (Position pos, int range) {
@@ -46,96 +91,6 @@ public interface Visibility {
 }
 
 
-/** Contains all the more common stuff between 'SimpleVisibility' and
- * 'LinearVisibility'. */
-abstract class AbstractVisibility implements Visibility {
-  protected Map<Position, Set<Position> > from, to;
-  protected Terrain map;
-  protected int range;
-  
-  /** Constructs a visibility graph for the given Terrain and range. */
-  public AbstractVisibility (Terrain map0, int range0) {
-    from = new HashMap<>();
-    to = new HashMap<>();
-    map = map0;
-    range = range0;
-    
-    // firstly, create lists for all positions
-    for (int i = 0; i < map.r; i++) {
-      for (int j = 0; j < map.c; j++) {
-        Position pos = new Position(i, j);
-        from.put(pos, new HashSet<Position>());
-        to.put(pos, new HashSet<Position>());
-      }
-    }
-    // for each position, calculate its visibility
-    for (int i = 0; i < map.r; i++) {
-      for (int j = 0; j < map.c; j++) {
-        recalculate(i, j);
-      }
-    }
-  }
-  
-  /** Returns true if A can see B, false otherwise. For internal use only. */
-  abstract protected boolean _canSee (Position A, Position B) ;
-  
-  /** A convenience method for automatically updating 'from' and 'to'. */
-  private void calcVis (Position A, Position B) {
-    if (_canSee(A, B)) {
-      from.get(A).add(B);
-      to.get(B).add(A);
-    }
-  }
-  
-  @Override
-  public void recalculate (Position A) {
-    // first, clear previous info
-    from.get(A).clear();
-    to.get(A).clear();
-    for (Position B : Visibility.getSight(A, range)) {
-      if (map.outOfBounds(B)) {
-        continue;
-      }
-      from.get(B).remove(A);
-      to.get(B).remove(A);
-    }
-    // now, calculate new info
-    for (Position B : Visibility.getSight(A, range)) {
-      calcVis(A, B);
-      calcVis(B, A);
-    }
-  }
-  
-  @Override
-  public Set<Position> visibleFrom (Position pos) {
-    return from.get(pos);
-  }
-  
-  @Override
-  public Set<Position> canSee (Position pos) {
-    return to.get(pos);
-  }
-  
-  @Override
-  public String toString () {
-    StringBuilder bui = new StringBuilder();
-    for (int i = 0; i < map.r; i++) {
-      for (int j = 0; j < map.c; j++) {
-        Set<Position> set = visibleFrom(i, j);
-        bui.append(set.size());
-        for (Position pos : set) {
-          bui.append(" ");
-          bui.append(pos.toString());
-        }
-        bui.append("\n");
-      }
-    }
-    return bui.toString();
-  }
-}
-
-
-
 /** Simple (but unrealistic) visibility graph. We see everything in range that
  * has lower or equal elevation except for forests; forests are
  * unobscured only when we are adjacent to them and they are not too high.
@@ -0,0 +1,117 @@
+package server.game.map;
+
+import java.io.*;
+import java.util.*;
+
+
+/** Compares 'LinearVisibility' and 'ShadowVisibility': how long it takes
+ * to build each graph, and which pairs of cells the two disagree on,
+ * broken down by distance and by the height of the target relative to
+ * the viewer. Run with
+ *   java -cp server.jar server.game.map.VisibilityBenchmark [map] [ranges...]
+ * Without a map, a random 200x200 terrain is used. */
+public class VisibilityBenchmark {
+  protected static final int ROUNDS = 3;
+  
+  /** Returns the best of <ROUNDS> times, in milliseconds, of building
+   * the graph of <kind> ("linear" or "shadow"). */
+  protected static double timeBuild (String kind, Terrain map, int range) {
+    double best = Double.MAX_VALUE;
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      if (kind.equals("shadow")) {
+        new ShadowVisibility(map, range, false);
+      }
+      else {
+        new LinearVisibility(map, range, false);
+      }
+      best = Math.min(best, (System.nanoTime() - start) / 1e6);
+    }
+    return best;
+  }
+  
+  /** Prints the comparison at the given range. */
+  protected static void compare (PrintStream out, Terrain map, int range) {
+    double tl = timeBuild("linear", map, range);
+    double ts = timeBuild("shadow", map, range);
+    Visibility lin = new LinearVisibility(map, range, false);
+    Visibility sha = new ShadowVisibility(map, range, false);
+    Diamond d = lin.getDiamond();
+    
+    long pairs = 0, both = 0, linOnly = 0, shaOnly = 0;
+    long[][] byDist = new long[range + 1][2]; // [distance][linear only, shadow only]
+    long[][] byHeight = new long[3][2]; // [target lower, same, higher][...]
+    List<String> examples = new ArrayList<String>();
+    for (int i = 0; i < map.r; i++) {
+      for (int j = 0; j < map.c; j++) {
+        for (int k = 0; k < d.size; k++) {
+          int br = i + d.dr(k);
+          int bc = j + d.dc(k);
+          if (map.outOfBounds(br, bc)) {
+            continue;
+          }
+          pairs++;
+          boolean l = lin.canSee(i, j, br, bc);
+          boolean s = sha.canSee(i, j, br, bc);
+          if (l && s) {
+            both++;
+          }
+          if (l == s) {
+            continue;
+          }
+          int side = (l ? 0 : 1);
+          if (l) {
+            linOnly++;
+          }
+          else {
+            shaOnly++;
+          }
+          byDist[Math.abs(d.dr(k)) + Math.abs(d.dc(k))][side]++;
+          byHeight[Integer.signum(map.heightAt(br, bc) - map.heightAt(i, j)) + 1][side]++;
+          if (examples.size() < 5) {
+            examples.add(String.format("[%d, %d] -> [%d, %d]: %s only", i, j, br, bc, (l ? "linear" : "shadow")));
+          }
+        }
+      }
+    }
+    
+    out.println(String.format("range %d: linear %.1f ms, shadow %.1f ms (%.1fx)", range, tl, ts, tl / ts));
+    out.println(String.format("  %d pairs in range, %d visible in both, %d linear only (%.2f%%), %d shadow only (%.2f%%)",
+                              pairs, both, linOnly, 100.0 * linOnly / pairs, shaOnly, 100.0 * shaOnly / pairs));
+    for (int dist = 1; dist <= range; dist++) {
+      if (byDist[dist][0] + byDist[dist][1] > 0) {
+        out.println(String.format("  distance %2d: %d linear only, %d shadow only", dist, byDist[dist][0], byDist[dist][1]));
+      }
+    }
+    String[] names = {"lower", "same height", "higher"};
+    for (int h = 0; h < 3; h++) {
+      out.println(String.format("  target %s: %d linear only, %d shadow only", names[h], byHeight[h][0], byHeight[h][1]));
+    }
+    for (String ex : examples) {
+      out.println("  e.g. " + ex);
+    }
+  }
+  
+  public static void main (String[] args) throws IOException {
+    Terrain map;
+    int first = 0;
+    if (args.length > 0 && !args[0].matches("\\d+")) {
+      map = new Terrain(new Scanner(new FileInputStream(args[0])));
+      first = 1;
+    }
+    else {
+      map = Terrain.mildRandom(new Random(1), 200, 200);
+    }
+    List<Integer> ranges = new ArrayList<Integer>();
+    for (int i = first; i < args.length; i++) {
+      ranges.add(Integer.parseInt(args[i]));
+    }
+    if (ranges.isEmpty()) {
+      ranges = Arrays.asList(3, 8, 16);
+    }
+    System.out.println(String.format("map %dx%d", map.r, map.c));
+    for (int range : ranges) {
+      compare(System.out, map, range);
+    }
+  }
+}
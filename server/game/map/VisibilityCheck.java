@@ -0,0 +1,188 @@
+package server.game.map;
+
+import java.util.*;
+
+
+/** Parity checks of the visibility graphs. The reference is the original
+ * line of sight algorithm, 'LinearVisibility.lineOfSight(between(A, B))'.
+ * It is run on random maps with elevations and forests of several
+ * densities. For each map and range, the check looks at every source
+ * cell and every offset up to two cells past the range, including
+ * targets off the map. It compares:
+ *   - 'LinearVisibility._canSee', which walks the precomputed rays,
+ *   - the graph built sequentially and in parallel,
+ *   - a 'LazyVisibility' that keeps only two tiles, so that most
+ *     queries drop a tile and compute one.
+ * The cells that see each cell and the listings of the graphs
+ * ('toString') are compared too. Then cells of the map are changed one
+ * by one, and after each change the lazy graph and a 'ShadowVisibility'
+ * are recalculated and compared with graphs built from scratch.
+ * Prints a line per map and range. Exits with status 1 on the first
+ * disagreement. Run with
+ *   java -cp server.jar server.game.map.VisibilityCheck [maps] [seed] */
+public class VisibilityCheck {
+  protected static final int MAX_RANGE = 8;
+  
+  /** The original 'LinearVisibility._canSee'. */
+  static boolean reference (Terrain map, int r1, int c1, int r2, int c2) {
+    Position A = new Position(r1, c1);
+    Position B = new Position(r2, c2);
+    if (map.outOfBounds(A) || map.outOfBounds(B)) {
+      return false;
+    }
+    return LinearVisibility.lineOfSight(LinearVisibility.between(A, B), map);
+  }
+  
+  /** Returns a random <r> x <c> map with elevations up to <maxHeight>
+   * and about <forests> of the cells forests, and a tenth water. */
+  static Terrain randomMap (Random rng, int r, int c, int maxHeight, double forests) {
+    Terrain map = new Terrain(r, c);
+    for (int i = 0; i < r; i++) {
+      for (int j = 0; j < c; j++) {
+        map.setHeight(i, j, rng.nextInt(maxHeight + 1));
+        double roll = rng.nextDouble();
+        if (roll < forests) {
+          map.setType(i, j, Terrain.Type.FOREST);
+        }
+        else
+        if (roll < forests + 0.1) {
+          map.setType(i, j, Terrain.Type.WATER);
+        }
+      }
+    }
+    return map;
+  }
+  
+  /** Compares everything for <map> at <range>. Returns the number of
+   * pairs compared, or -1 after printing the first disagreement. */
+  static long check (Terrain map, int range) {
+    LinearVisibility seq = new LinearVisibility(map, range, false);
+    LinearVisibility par = new LinearVisibility(map, range, true);
+    LazyVisibility lazy = new LazyVisibility(map, range, 2);
+    int reach = range + 2;
+    long pairs = 0;
+    for (int i = 0; i < map.r; i++) {
+      for (int j = 0; j < map.c; j++) {
+        for (int dr = -reach; dr <= reach; dr++) {
+          int lim = reach - Math.abs(dr);
+          for (int dc = -lim; dc <= lim; dc++) {
+            int br = i + dr;
+            int bc = j + dc;
+            boolean expected = reference(map, i, j, br, bc);
+            boolean inRange = (Math.abs(dr) + Math.abs(dc) <= range);
+            String bad = null;
+            if (seq._canSee(i, j, br, bc) != expected) {
+              bad = "rays";
+            }
+            else
+            if (seq.canSee(i, j, br, bc) != (expected && inRange)) {
+              bad = "sequential graph";
+            }
+            else
+            if (par.canSee(i, j, br, bc) != (expected && inRange)) {
+              bad = "parallel graph";
+            }
+            else
+            if (lazy.canSee(i, j, br, bc) != (expected && inRange)) {
+              bad = "lazy graph";
+            }
+            if (bad != null) {
+              System.out.printf("MISMATCH (%s) at range %d: [%d, %d] -> [%d, %d], expected %b%n", bad, range, i, j, br, bc, expected);
+              return -1;
+            }
+            pairs++;
+          }
+        }
+        Position pos = new Position(i, j);
+        if (!lazy.canSee(pos).equals(seq.canSee(pos)) || !par.canSee(pos).equals(seq.canSee(pos))) {
+          System.out.printf("MISMATCH (cells that see) at range %d: [%d, %d]%n", range, i, j);
+          return -1;
+        }
+      }
+    }
+    String listing = seq.toString();
+    if (!par.toString().equals(listing) || !lazy.toString().equals(listing)) {
+      System.out.printf("MISMATCH (listing) at range %d%n", range);
+      return -1;
+    }
+    return pairs;
+  }
+  
+  /** Returns null if <a> and <b> are the same graph of <map>, else the
+   * first cell where they differ. */
+  static Position difference (Visibility a, Visibility b, Terrain map) {
+    for (int i = 0; i < map.r; i++) {
+      for (int j = 0; j < map.c; j++) {
+        Position pos = new Position(i, j);
+        if (!a.visibleFrom(pos).equals(b.visibleFrom(pos)) || !a.canSee(pos).equals(b.canSee(pos))) {
+          return pos;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /** Changes <edits> random cells of <map> one by one, recalculating a
+   * lazy graph and a shadowcasting one at <range> after each change and
+   * comparing them with graphs built from scratch. Returns false after
+   * printing the first disagreement. */
+  static boolean checkRecalculate (Random rng, Terrain map, int range, int edits, int maxHeight) {
+    ShadowVisibility shadow = new ShadowVisibility(map, range, false);
+    Position bad = difference(shadow, new ShadowVisibility(map, range, true), map);
+    if (bad != null) {
+      System.out.printf("MISMATCH (shadow, parallel build) at range %d: %s%n", range, bad);
+      return false;
+    }
+    LazyVisibility lazy = new LazyVisibility(map, range, 4);
+    for (int e = 0; e < edits; e++) {
+      Position A = new Position(rng.nextInt(map.r), rng.nextInt(map.c));
+      lazy.canSee(A.r, A.c, A.r, A.c); // so that the tile of A is the last one used
+      map.setHeight(A.r, A.c, rng.nextInt(maxHeight + 1));
+      map.setType(A.r, A.c, rng.nextInt(3) == 0 ? Terrain.Type.FOREST : Terrain.Type.PLAINS);
+      lazy.recalculate(A);
+      shadow.recalculate(A);
+      bad = difference(lazy, new LinearVisibility(map, range, false), map);
+      if (bad != null) {
+        System.out.printf("MISMATCH (lazy, recalculated at %s) at range %d: %s%n", A, range, bad);
+        return false;
+      }
+      bad = difference(shadow, new ShadowVisibility(map, range, false), map);
+      if (bad != null) {
+        System.out.printf("MISMATCH (shadow, recalculated at %s) at range %d: %s%n", A, range, bad);
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  public static void main (String[] args) {
+    int maps = (args.length > 0 ? Integer.parseInt(args[0]) : 9);
+    long seed = (args.length > 1 ? Long.parseLong(args[1]) : 1);
+    Random rng = new Random(seed);
+    int[] maxHeights = {1, 4, Terrain.MAX_HEIGHT};
+    double[] forests = {0, 0.15, 0.4};
+    for (int m = 0; m < maps; m++) {
+      int r = 20 + rng.nextInt(40);
+      int c = 20 + rng.nextInt(40);
+      int maxHeight = maxHeights[m % maxHeights.length];
+      double forest = forests[(m / maxHeights.length) % forests.length];
+      Terrain map = randomMap(rng, r, c, maxHeight, forest);
+      for (int range = 1; range <= MAX_RANGE; range++) {
+        long pairs = check(map, range);
+        if (pairs < 0) {
+          System.out.printf("map %d (%dx%d, heights 0..%d, forests %.2f) FAILED%n", m, r, c, maxHeight, forest);
+          System.exit(1);
+        }
+        System.out.printf("map %d (%dx%d, heights 0..%d, forests %.2f) range %d: %d pairs ok%n", m, r, c, maxHeight, forest, range, pairs);
+      }
+      for (int range = 1; range <= MAX_RANGE; range++) {
+        if (!checkRecalculate(rng, map, range, 5, maxHeight)) {
+          System.out.printf("map %d (%dx%d, heights 0..%d, forests %.2f) FAILED%n", m, r, c, maxHeight, forest);
+          System.exit(1);
+        }
+      }
+      System.out.printf("map %d: recalculated graphs ok%n", m);
+    }
+    System.out.println("all visibility checks passed");
+  }
+}
@@ -24,24 +24,27 @@ public class Unit {
   public final Type type;
   protected int health, stamina;
   
-  protected static int free_id = 0;
-  
-  /** Creates a new unit of the given type, with full health and stamina. */
-  public Unit (int owner0, Type type0) {
+  /** Creates a new unit of the given type, with full health and stamina.
+   * Unit ids are assigned by the game (see 'UnitStore'), so that games
+   * running in the same JVM do not share a counter. */
+  public Unit (int id0, int owner0, Type type0) {
+    id = id0;
     owner = owner0;
     type = type0;
     health = type.maxHealth;
     stamina = type.maxStamina;
-    id = free_id;
-    free_id += 1;
+  }
+  
+  /** Returns <value> clamped to bounds [0, max]. */
+  static int clamp (int value, int max) {
+    return Math.min(max, Math.max(0, value));
   }
   
   /** Causes the unit to change its health by +amount, which can be
    * negative (causing the unit to lose health). Will keep the unit's
    * health within bounds [0, maxHealth]. */
   public void changeHealth (int amount) {
-    health += amount;
-    health = Math.min(type.maxHealth, Math.max(0, health));
+    health = clamp(health + amount, type.maxHealth);
   }
   public int getHealth () {
     return health;
@@ -56,8 +59,7 @@ public class Unit {
   /** Causes the unit to change its stamina by +amount. Will keep the
    * stamina within bounds [0, maxStamina]. */
   public void changeStamina (int amount) {
-    stamina += amount;
-    stamina = Math.min(type.maxStamina, Math.max(0, stamina));
+    stamina = clamp(stamina + amount, type.maxStamina);
   }
   public int getStamina () {
     return stamina;
@@ -73,21 +75,30 @@ public class Unit {
   /** Returns the attack strength of this unit, taking into account
    * current health and stamina. */
   public double getAttack () {
-    double hp = getHealthPercentage();
-    double sp = getStaminaPercentage();
+    return attack(type, health, stamina);
+  }
+  static double attack (Type type, int health, int stamina) {
+    double hp = (double)health / type.maxHealth;
+    double sp = (double)stamina / type.maxStamina;
     return (double)type.baseAttack * hp * (1.0 + sp) / 2.0;
   }
   
   /** Returns the defensive strength of this unit, taking into account
    * current health and stamina. */
   public double getDefense () {
-    double hp = getHealthPercentage();
-    double sp = getStaminaPercentage();
+    return defense(type, health, stamina);
+  }
+  static double defense (Type type, int health, int stamina) {
+    double hp = (double)health / type.maxHealth;
+    double sp = (double)stamina / type.maxStamina;
     return (double)type.baseDefense * hp * (1.0 + sp) / 2.0;
   }
   
   @Override
   public String toString () {
+    return describe(id, owner, type, health, stamina);
+  }
+  static String describe (int id, int owner, Type type, int health, int stamina) {
     return String.format("%d %d %d %d %d", id, owner, type.ordinal(), health, stamina);
   }
 }
@@ -0,0 +1,202 @@
+package server.game.units;
+
+import java.util.*;
+
+
+/** All units of a game, stored as parallel primitive arrays indexed by
+ * slot. Slots are dense (0 .. size()-1); removing a unit moves the last
+ * unit into the freed slot. An occupancy grid maps each cell to the slot
+ * of the unit standing there, or -1. The grid has one extra row below
+ * the map, so that attackers can step onto the finish line before they
+ * are scored. */
+public class UnitStore {
+  public final int rows, cols;
+  protected int[] grid; // cell -> slot, -1 if empty
+  protected long[] occupied; // bit k set iff grid[k] != -1
+  
+  protected int size;
+  protected int freeId; // the next unit id, counted per store (so per game)
+  protected int[] id, owner, health, stamina, cell;
+  protected Unit.Type[] type;
+  
+  /** Constructs an empty store for a map with <rows0> rows and <cols0>
+   * columns, with room for <expected> units. */
+  public UnitStore (int rows0, int cols0, int expected) {
+    rows = rows0;
+    cols = cols0;
+    grid = new int[(rows + 1) * cols];
+    Arrays.fill(grid, -1);
+    occupied = new long[(grid.length + 63) >>> 6];
+    
+    int cap = Math.max(16, expected);
+    size = 0;
+    freeId = 0;
+    id = new int[cap];
+    owner = new int[cap];
+    health = new int[cap];
+    stamina = new int[cap];
+    cell = new int[cap];
+    type = new Unit.Type[cap];
+  }
+  
+  /** Returns the number of units. */
+  public int size () {
+    return size;
+  }
+  
+  /** Returns the cell index of [pos_r, pos_c], or -1 if there is no
+   * such cell in the grid. */
+  public int cellOf (int pos_r, int pos_c) {
+    if (pos_r < 0 || pos_r > rows || pos_c < 0 || pos_c >= cols) {
+      return -1;
+    }
+    return pos_r * cols + pos_c;
+  }
+  
+  /** Returns the slot of the unit at [pos_r, pos_c], or -1 if there is
+   * none. */
+  public int slotAt (int pos_r, int pos_c) {
+    int k = cellOf(pos_r, pos_c);
+    return (k < 0 ? -1 : grid[k]);
+  }
+  
+  /** Returns the slot of the unit in cell <k>, or -1 if there is none. */
+  public int slotIn (int k) {
+    return grid[k];
+  }
+  
+  /** Returns the number of words of the occupancy bitmap. */
+  public int occupancyWords () {
+    return occupied.length;
+  }
+  /** Returns word <w> of the occupancy bitmap: bit k of word w is set
+   * if there is a unit in cell 64*w + k. */
+  public long occupancyWord (int w) {
+    return occupied[w];
+  }
+  
+  /** Puts slot <slot> (or nobody, if -1) into cell <k>. */
+  private void setCell (int k, int slot) {
+    grid[k] = slot;
+    if (slot >= 0) {
+      occupied[k >>> 6] |= 1L << k;
+    }
+    else {
+      occupied[k >>> 6] &= ~(1L << k);
+    }
+  }
+  
+  /** Adds a unit with full health and stamina at [pos_r, pos_c], which
+   * must be empty and within the grid. Returns its slot. */
+  public int add (int owner0, Unit.Type type0, int pos_r, int pos_c) {
+    if (size == id.length) {
+      int cap = 2 * size;
+      id = Arrays.copyOf(id, cap);
+      owner = Arrays.copyOf(owner, cap);
+      health = Arrays.copyOf(health, cap);
+      stamina = Arrays.copyOf(stamina, cap);
+      cell = Arrays.copyOf(cell, cap);
+      type = Arrays.copyOf(type, cap);
+    }
+    int slot = size;
+    size++;
+    id[slot] = freeId;
+    freeId += 1;
+    owner[slot] = owner0;
+    type[slot] = type0;
+    health[slot] = type0.maxHealth;
+    stamina[slot] = type0.maxStamina;
+    cell[slot] = cellOf(pos_r, pos_c);
+    setCell(cell[slot], slot);
+    return slot;
+  }
+  
+  /** Removes the unit in slot <slot>. The unit from the last slot takes
+   * its place. */
+  public void remove (int slot) {
+    if (grid[cell[slot]] == slot) {
+      setCell(cell[slot], -1);
+    }
+    int last = size - 1;
+    if (slot != last) {
+      id[slot] = id[last];
+      owner[slot] = owner[last];
+      type[slot] = type[last];
+      health[slot] = health[last];
+      stamina[slot] = stamina[last];
+      cell[slot] = cell[last];
+      if (grid[cell[slot]] == last) {
+        grid[cell[slot]] = slot;
+      }
+    }
+    type[last] = null;
+    size--;
+  }
+  
+  /** Moves the unit in slot <slot> to cell <k>. The cell it leaves is
+   * cleared only if no other unit has already moved in. */
+  public void moveTo (int slot, int k) {
+    if (grid[cell[slot]] == slot) {
+      setCell(cell[slot], -1);
+    }
+    cell[slot] = k;
+    setCell(k, slot);
+  }
+  
+  public int id (int slot) {
+    return id[slot];
+  }
+  public int owner (int slot) {
+    return owner[slot];
+  }
+  public Unit.Type type (int slot) {
+    return type[slot];
+  }
+  public int health (int slot) {
+    return health[slot];
+  }
+  public int stamina (int slot) {
+    return stamina[slot];
+  }
+  public boolean isDead (int slot) {
+    return health[slot] == 0;
+  }
+  /** Returns the cell index of the unit in slot <slot>. */
+  public int cell (int slot) {
+    return cell[slot];
+  }
+  public int row (int slot) {
+    return cell[slot] / cols;
+  }
+  public int col (int slot) {
+    return cell[slot] % cols;
+  }
+  
+  /** Changes health of the unit in slot <slot> by +amount, keeping it
+   * within bounds [0, maxHealth], like 'Unit.changeHealth'. */
+  public void changeHealth (int slot, int amount) {
+    health[slot] = Unit.clamp(health[slot] + amount, type[slot].maxHealth);
+  }
+  /** Changes stamina of the unit in slot <slot> by +amount, keeping it
+   * within bounds [0, maxStamina], like 'Unit.changeStamina'. */
+  public void changeStamina (int slot, int amount) {
+    stamina[slot] = Unit.clamp(stamina[slot] + amount, type[slot].maxStamina);
+  }
+  
+  /** Returns the attack strength of the unit in slot <slot>, see
+   * 'Unit.getAttack'. */
+  public double attack (int slot) {
+    return Unit.attack(type[slot], health[slot], stamina[slot]);
+  }
+  /** Returns the defensive strength of the unit in slot <slot>, see
+   * 'Unit.getDefense'. */
+  public double defense (int slot) {
+    return Unit.defense(type[slot], health[slot], stamina[slot]);
+  }
+  
+  /** Returns the same description of the unit in slot <slot> as
+   * 'Unit.toString' would. */
+  public String describe (int slot) {
+    return Unit.describe(id[slot], owner[slot], type[slot], health[slot], stamina[slot]);
+  }
+}